@@ -70,6 +70,27 @@ public enum AggregateMonths {
 			}
 			return total/fnday;
 		}
+
+		@Override
+		public Accumulator accumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth) {
+			return new Accumulator() {
+				double total = 0.;
+				int nday = 0;
+
+				@Override
+				public void add(double value) {
+					if (nday < endDayOfMonth) {
+						total += value;
+						nday++;
+					}
+				}
+
+				@Override
+				public double result() {
+					return total / (double) endDayOfMonth;
+				}
+			};
+		}
 	},
 
 	
@@ -110,6 +131,26 @@ public enum AggregateMonths {
 			}
 			return max;
 		}
+
+		@Override
+		public Accumulator accumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth) {
+			return new Accumulator() {
+				double max = -9999;
+				int nday = 0;
+
+				@Override
+				public void add(double value) {
+					if (nday++ < endDayOfMonth && value > max) {
+						max = value;
+					}
+				}
+
+				@Override
+				public double result() {
+					return max;
+				}
+			};
+		}
 	},
 
 	/**
@@ -127,21 +168,57 @@ public enum AggregateMonths {
 			int stopIndex = firstMonthIndex + endDayOfMonth;
 			int TRUNCATION = 14;
 
-			double max = -9999;
 			startIndex = 0;  //TODO hardwired ... something is wrong here about indexes
 			stopIndex = endDayOfMonth;
-			//System.out.println("max");
-			for (int iday = (startIndex+TRUNCATION); iday < stopIndex; iday++) {
-				double ave14 = 0.; 
-				//System.out.println("iday "+iday+" val "+daily[iday]);
-				for (int j = iday - 14 + 1; j <= iday; j++) {
-					ave14 += daily[j];
+			return RunningWindow.maxMean(daily, startIndex + TRUNCATION, stopIndex, 14);
+		}
+
+		@Override
+		public void aggregateBatch(double[][] daily, int firstMonthIndex, int startDayOfMonth, int endDayOfMonth,
+				double[] out) {
+			RunningWindow.maxMean(daily, 14, endDayOfMonth, 14, out);
+		}
+
+		@Override
+		public Accumulator accumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth) {
+			// Same sliding sum as RunningWindow.maxMean, so the results are identical
+			return new Accumulator() {
+				// Last 14 values, oldest at ring[next], which is the day leaving the
+				// window when the next one arrives
+				final double[] ring = new double[14];
+				int next = 0;
+				int nday = 0;
+				double sum = 0.;
+				double maxSum = 0.;
+
+				@Override
+				public void add(double value) {
+					if (nday >= endDayOfMonth) {
+						return;
+					}
+					double leaving = ring[next];
+					ring[next] = value;
+					next = (next + 1) % 14;
+					int iday = nday++;
+					if (iday == 14) {
+						// First window, days 1 to 14, summed oldest first
+						sum = 0.;
+						for (int k = 0; k < 14; k++) {
+							sum += ring[(next + k) % 14];
+						}
+						maxSum = sum;
+					} else if (iday > 14) {
+						sum += value - leaving;
+						if (sum > maxSum)
+							maxSum = sum;
+					}
 				}
-				ave14 /= 14.;
-				if (ave14 > max)
-					max = ave14;
-			}
-			return max;
+
+				@Override
+				public double result() {
+					return nday > 14 ? Math.max(maxSum / 14, RunningWindow.NO_WINDOW) : RunningWindow.NO_WINDOW;
+				}
+			};
 		}
 	},	
 	/**
@@ -185,6 +262,27 @@ public enum AggregateMonths {
 			}
 			return total/fnday;
 		}
+
+		@Override
+		public Accumulator accumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth) {
+			return new Accumulator() {
+				double total = 0.;
+				int nday = 0;
+
+				@Override
+				public void add(double value) {
+					if (nday >= endDayOfMonth - 7 && nday < endDayOfMonth) {
+						total += value;
+					}
+					nday++;
+				}
+
+				@Override
+				public double result() {
+					return total / 7.;
+				}
+			};
+		}
 	},		
 	/**
 	 * Computes the maximum of a 14-day backward-looking running average over the specified period.
@@ -216,17 +314,14 @@ public enum AggregateMonths {
 			int startIndex = firstMonthIndex + startDayOfMonth - 1;
 			int stopIndex = firstMonthIndex + endDayOfMonth;
 
-			double max = -9999;
-			for (int i = startIndex; i < stopIndex; i++) {
-				double ave14 = 0.;
-				for (int j = i - 14 + 1; j <= i; j++) {
-					ave14 += daily[j];
-				}
-				ave14 /= 14;
-				if (ave14 > max)
-					max = ave14;
-			}
-			return max;
+			return RunningWindow.maxMean(daily, startIndex, stopIndex, 14);
+		}
+
+		@Override
+		public void aggregateBatch(double[][] daily, int firstMonthIndex, int startDayOfMonth, int endDayOfMonth,
+				double[] out) {
+			RunningWindow.maxMean(daily, firstMonthIndex + startDayOfMonth - 1, firstMonthIndex + endDayOfMonth, 14,
+					out);
 		}
 	},
 
@@ -252,19 +347,59 @@ public enum AggregateMonths {
 		@Override
 		public double aggregate(double[] daily, int firstMonthIndex, 
 				int startDayOfMonth, int endDayOfMonth) {
+			return aggregate(daily, firstMonthIndex, startDayOfMonth, endDayOfMonth, this.num, this.threshold);
+		}
+
+		@Override
+		public double aggregate(double[] daily, int firstMonthIndex, int startDayOfMonth, int endDayOfMonth,
+				int n, double threshold) {
 
 			int startIndex = 0; //firstMonthIndex + startDayOfMonth - 1;
 			int stopIndex = endDayOfMonth;
 			// stopIndex = firstMonthIndex + endDayOfMonth -1;
 			int nval = stopIndex - startIndex;
 
-			double[] ordered = new double[nval]; 
-			System.arraycopy(daily,startIndex,ordered,0,nval);
-			java.util.Arrays.sort(ordered);
-			double ret = this.num > 0 ? ordered[this.num-1] : -9999.;
+			// Selection on a reused scratch copy rather than sorting the month
+			double ret = n > 0 ? OrderStatistics.nthSmallest(daily, nval, n) : -9999.;
 			return ret;
 		}
 
+		/**
+		 * Collects the month's values in a primitive buffer and selects the nth
+		 * smallest once the month is complete
+		 */
+		@Override
+		public Accumulator accumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth) {
+			return accumulator(firstMonthIndex, startDayOfMonth, endDayOfMonth, this.num, this.threshold);
+		}
+
+		@Override
+		public Accumulator accumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth,
+				final int n, double threshold) {
+			return new Accumulator() {
+				final double[] daily = new double[n > 0 ? Math.max(endDayOfMonth, 0) : 0];
+				int nday = 0;
+
+				@Override
+				public void add(double value) {
+					if (nday < daily.length) {
+						daily[nday++] = value;
+					}
+				}
+
+				@Override
+				public double result() {
+					// Same selection, and the same failure for too few values, as aggregate()
+					return n > 0 ? OrderStatistics.nthSmallest(daily, nday, n) : -9999.;
+				}
+			};
+		}
+
+		@Override
+		boolean isParameterized() {
+			return true;
+		}
+
 	},
 	/**
 	 * Compute the number of values below a threshold for the month. 
@@ -278,6 +413,12 @@ public enum AggregateMonths {
 		public double aggregate(double[] daily, 
 				int firstMonthIndex, 
 				int startDayOfMonth, int endDayOfMonth) {
+			return aggregate(daily, firstMonthIndex, startDayOfMonth, endDayOfMonth, this.num, this.threshold);
+		}
+
+		@Override
+		public double aggregate(double[] daily, int firstMonthIndex, int startDayOfMonth, int endDayOfMonth,
+				int n, double threshold) {
 
 			int startIndex = 0; //firstMonthIndex + startDayOfMonth - 1;
 			int stopIndex = endDayOfMonth;
@@ -288,7 +429,7 @@ public enum AggregateMonths {
 			//System.out.println(Arrays.toString(daily));
 			
 			for (int i = (startIndex); i < stopIndex; i++) {
-				if (daily[i] <= this.threshold+1e-4){
+				if (daily[i] <= threshold+1e-4){
 					count += 1;
 				}
 			}
@@ -296,6 +437,38 @@ public enum AggregateMonths {
 			return count;
 		}
 
+		@Override
+		public Accumulator accumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth) {
+			return accumulator(firstMonthIndex, startDayOfMonth, endDayOfMonth, this.num, this.threshold);
+		}
+
+		@Override
+		public Accumulator accumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth, int n,
+				double threshold) {
+			final double limit = threshold + 1e-4;
+			return new Accumulator() {
+				int count = 0;
+				int nday = 0;
+
+				@Override
+				public void add(double value) {
+					if (nday++ < endDayOfMonth && value <= limit) {
+						count += 1;
+					}
+				}
+
+				@Override
+				public double result() {
+					return count;
+				}
+			};
+		}
+
+		@Override
+		boolean isParameterized() {
+			return true;
+		}
+
 	};		
 
 	public final int calsimCode;
@@ -303,12 +476,18 @@ public enum AggregateMonths {
 	public int num;
 	public double threshold;
 
+	/**
+	 * Set the threshold, as in count below threshold. The setting is shared by
+	 * every user of the constant, so it is not safe when evaluations with
+	 * different thresholds run concurrently. Use {@link Aggregator} instead.
+	 */
 	public void setThreshold(double thresh) {
 		this.threshold = thresh;
 	}
 
 	/**
-	 * Set the n part, as in nth smallest value
+	 * Set the n part, as in nth smallest value. Shared like
+	 * {@link #setThreshold(double)}; use {@link Aggregator} instead.
 	 * @param nth
 	 */
 	public void setN(int n) {
@@ -325,6 +504,107 @@ public enum AggregateMonths {
 		return -99999.;
 	}
 
+	/**
+	 * Aggregates with the n and threshold given explicitly rather than read from
+	 * the shared settings, so that it may be called concurrently with different
+	 * parameters. Statistics without parameters ignore them.
+	 */
+	public double aggregate(double[] daily, int firstMonthIndex, int startDayOfMonth, int endDayOfMonth, int n,
+			double threshold) {
+		return aggregate(daily, firstMonthIndex, startDayOfMonth, endDayOfMonth);
+	}
+
+	/**
+	 * True if the statistic depends on n or threshold
+	 */
+	boolean isParameterized() {
+		return false;
+	}
+
+	/**
+	 * Aggregates a [nbatch][nday] block of daily series, one row per batch
+	 * member, with the same window arguments for every row. Equivalent to
+	 * calling {@link #aggregate(double[], int, int, int)} on each row.
+	 *
+	 * @param out receives one value per row
+	 */
+	public void aggregateBatch(double[][] daily, int firstMonthIndex, int startDayOfMonth, int endDayOfMonth,
+			double[] out) {
+		for (int ib = 0; ib < daily.length; ib++) {
+			out[ib] = aggregate(daily[ib], firstMonthIndex, startDayOfMonth, endDayOfMonth);
+		}
+	}
+
+	/**
+	 * Running form of {@link #aggregate(double[], int, int, int)} that is fed the
+	 * daily values one at a time, first day of the month first, so that the daily
+	 * series never needs to be stored.
+	 */
+	public interface Accumulator {
+		/**
+		 * Adds the value for the next day
+		 */
+		void add(double value);
+
+		/**
+		 * Returns the monthly statistic of the values added so far
+		 */
+		double result();
+	}
+
+	/**
+	 * Returns an accumulator that gives the same result as
+	 * {@link #aggregate(double[], int, int, int)} with the same arguments on the
+	 * values added to it. Statistics that can be computed as the values arrive
+	 * keep only the state they need. The default buffers the values and calls
+	 * aggregate() at the end. Settings made with {@link #setN(int)} and
+	 * {@link #setThreshold(double)} are read when the accumulator is created.
+	 */
+	public Accumulator accumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth) {
+		return bufferingAccumulator(firstMonthIndex, startDayOfMonth, endDayOfMonth, this.num, this.threshold);
+	}
+
+	/**
+	 * Returns an accumulator for
+	 * {@link #aggregate(double[], int, int, int, int, double)} with the given
+	 * parameters
+	 */
+	public Accumulator accumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth, int n,
+			double threshold) {
+		return accumulator(firstMonthIndex, startDayOfMonth, endDayOfMonth);
+	}
+
+	private Accumulator bufferingAccumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth,
+			final int n, final double threshold) {
+		return new Accumulator() {
+			double[] daily = new double[Math.max(endDayOfMonth, 1)];
+			int nday = 0;
+
+			@Override
+			public void add(double value) {
+				if (nday == daily.length) {
+					daily = Arrays.copyOf(daily, 2 * daily.length);
+				}
+				daily[nday++] = value;
+			}
+
+			@Override
+			public double result() {
+				return aggregate(daily, firstMonthIndex, startDayOfMonth, endDayOfMonth, n, threshold);
+			}
+		};
+	}
+
+
+	/**
+	 * Returns the statistic with the given CalSIM code, or null if there is none
+	 */
+	public static AggregateMonths forCalsimCode(int calsimCode) {
+		for (AggregateMonths agg : AggregateMonths.values()) {
+			if (agg.calsimCode==calsimCode) return agg;
+		}
+		return null;
+	}
 
 	public  AggregateMonths aggForCalsimCode(int calsimCode) {
 		for (AggregateMonths agg : AggregateMonths.values()) {
@@ -0,0 +1,214 @@
+package calsim.surrogate;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An {@link AggregateMonths} statistic together with its parameters, the n of
+ * NTH_SMALLEST and the threshold of COUNTBELOW. The enum constants are shared
+ * singletons, so setting their parameters with
+ * {@link AggregateMonths#setN(int)} or
+ * {@link AggregateMonths#setThreshold(double)} affects every evaluation that
+ * uses them. An Aggregator is immutable, so evaluations of one
+ * {@link SurrogateMonth} with different thresholds may run concurrently.
+ *
+ * <p>Instances are obtained from the factory methods, which hand out the same
+ * instance for the same statistic and parameters. Parameters are dropped for
+ * statistics that do not use them.</p>
+ */
+public final class Aggregator {
+
+	/** Cached instances beyond which new parameter combinations are not cached */
+	private static final int MAX_CACHED = 4096;
+
+	private static final ConcurrentHashMap<Aggregator, Aggregator> cache = new ConcurrentHashMap<Aggregator, Aggregator>();
+
+	private final AggregateMonths kind;
+	private final int n;
+	private final double threshold;
+
+	private Aggregator(AggregateMonths kind, int n, double threshold) {
+		this.kind = kind;
+		this.n = n;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Returns the aggregator for a statistic without parameters, or with n and
+	 * threshold of zero
+	 */
+	public static Aggregator of(AggregateMonths kind) {
+		return of(kind, 0, 0.);
+	}
+
+	/**
+	 * Returns the aggregator for a statistic and its parameters
+	 *
+	 * @param kind      statistic
+	 * @param n         rank for NTH_SMALLEST, ignored otherwise
+	 * @param threshold threshold for COUNTBELOW, ignored otherwise
+	 */
+	public static Aggregator of(AggregateMonths kind, int n, double threshold) {
+		if (kind == null) {
+			throw new IllegalArgumentException("Aggregation statistic must not be null");
+		}
+		Aggregator key = kind.isParameterized() ? new Aggregator(kind, n, threshold) : new Aggregator(kind, 0, 0.);
+		Aggregator cached = cache.get(key);
+		if (cached != null) {
+			return cached;
+		}
+		if (cache.size() >= MAX_CACHED) {
+			return key;
+		}
+		cached = cache.putIfAbsent(key, key);
+		return cached == null ? key : cached;
+	}
+
+	/**
+	 * Returns the aggregator for a CalSIM averaging code and its parameters
+	 *
+	 * @throws IllegalArgumentException if no statistic has the code
+	 */
+	public static Aggregator of(int calsimCode, int n, double threshold) {
+		AggregateMonths kind = AggregateMonths.forCalsimCode(calsimCode);
+		if (kind == null) {
+			throw new IllegalArgumentException("No aggregation statistic for CalSIM code " + calsimCode);
+		}
+		return of(kind, n, threshold);
+	}
+
+	/**
+	 * Returns the aggregator for the current shared settings of an enum constant.
+	 * Used to keep callers of {@link AggregateMonths#setN(int)} working.
+	 */
+	static Aggregator current(AggregateMonths kind) {
+		return of(kind, kind.num, kind.threshold);
+	}
+
+	public AggregateMonths getKind() {
+		return kind;
+	}
+
+	public int getN() {
+		return n;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * See {@link AggregateMonths#aggregate(double[], int, int, int)}
+	 */
+	public double aggregate(double[] daily, int firstMonthIndex, int startDayOfMonth, int endDayOfMonth) {
+		return kind.aggregate(daily, firstMonthIndex, startDayOfMonth, endDayOfMonth, n, threshold);
+	}
+
+	/**
+	 * See {@link AggregateMonths#aggregateBatch(double[][], int, int, int, double[])}
+	 */
+	public void aggregateBatch(double[][] daily, int firstMonthIndex, int startDayOfMonth, int endDayOfMonth,
+			double[] out) {
+		if (!kind.isParameterized()) {
+			kind.aggregateBatch(daily, firstMonthIndex, startDayOfMonth, endDayOfMonth, out);
+			return;
+		}
+		for (int ib = 0; ib < daily.length; ib++) {
+			out[ib] = aggregate(daily[ib], firstMonthIndex, startDayOfMonth, endDayOfMonth);
+		}
+	}
+
+	/**
+	 * See {@link AggregateMonths#accumulator(int, int, int)}
+	 */
+	public AggregateMonths.Accumulator accumulator(int firstMonthIndex, int startDayOfMonth, int endDayOfMonth) {
+		return kind.accumulator(firstMonthIndex, startDayOfMonth, endDayOfMonth, n, threshold);
+	}
+
+	/**
+	 * Returns one accumulator per aggregator for the same series of daily values.
+	 * Two or more NTH_SMALLEST aggregators, as for several day-count targets,
+	 * share one buffer and one selection of all their ranks with
+	 * {@link OrderStatistics#nthSmallest(double[], int, int[])}. Every returned
+	 * accumulator must be given the same values.
+	 */
+	static AggregateMonths.Accumulator[] accumulators(Aggregator[] aggregators, int firstMonthIndex,
+			int startDayOfMonth, int endDayOfMonth) {
+		AggregateMonths.Accumulator[] acc = new AggregateMonths.Accumulator[aggregators.length];
+		int nRank = 0;
+		for (Aggregator aggregator : aggregators) {
+			if (aggregator.kind == AggregateMonths.NTH_SMALLEST && aggregator.n > 0) {
+				nRank++;
+			}
+		}
+		RankSelection ranks = nRank > 1 ? new RankSelection(nRank, endDayOfMonth) : null;
+		for (int i = 0; i < aggregators.length; i++) {
+			Aggregator aggregator = aggregators[i];
+			if (ranks != null && aggregator.kind == AggregateMonths.NTH_SMALLEST && aggregator.n > 0) {
+				acc[i] = ranks.member(aggregator.n);
+			} else {
+				acc[i] = aggregator.accumulator(firstMonthIndex, startDayOfMonth, endDayOfMonth);
+			}
+		}
+		return acc;
+	}
+
+	/**
+	 * Month of daily values from which several ranks are selected together. The
+	 * first member keeps the values; the others ignore theirs, which are the
+	 * same.
+	 */
+	private static final class RankSelection {
+		final int[] ns;
+		final double[] daily;
+		int nday = 0;
+		int nMember = 0;
+		double[] selected;
+
+		RankSelection(int nRank, int endDayOfMonth) {
+			this.ns = new int[nRank];
+			this.daily = new double[Math.max(endDayOfMonth, 0)];
+		}
+
+		AggregateMonths.Accumulator member(int n) {
+			final int index = nMember++;
+			ns[index] = n;
+			return new AggregateMonths.Accumulator() {
+				@Override
+				public void add(double value) {
+					if (index == 0 && nday < daily.length) {
+						daily[nday++] = value;
+					}
+				}
+
+				@Override
+				public double result() {
+					if (selected == null) {
+						selected = OrderStatistics.nthSmallest(daily, nday, ns);
+					}
+					return selected[index];
+				}
+			};
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * kind.hashCode() + n) + Double.hashCode(threshold);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof Aggregator))
+			return false;
+		Aggregator other = (Aggregator) obj;
+		return kind == other.kind && n == other.n
+				&& Double.doubleToLongBits(threshold) == Double.doubleToLongBits(other.threshold);
+	}
+
+	@Override
+	public String toString() {
+		return kind.isParameterized() ? kind + "[n=" + n + ", threshold=" + threshold + "]" : kind.toString();
+	}
+}
@@ -0,0 +1,289 @@
+package calsim.surrogate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decorator that coalesces concurrent estimate() calls on a surrogate into
+ * larger batches. ANN evaluation cost grows much more slowly than batch size,
+ * so when several threads or locations each ask for a handful of rows at about
+ * the same time, one combined call is far cheaper than many small ones.
+ *
+ * <p>Requests are queued and picked up by a dispatcher thread. The dispatcher
+ * takes the first waiting request, then keeps collecting until the combined
+ * batch reaches maxBatch rows or maxDelay has passed since the first request,
+ * whichever comes first. Requests with the same input lag lengths are stacked
+ * into one {@link SurrogateBatch}, evaluated with a single call to the wrapped
+ * surrogate and the output rows are handed back to each caller's future. A
+ * lone caller therefore waits at most maxDelay beyond its own evaluation.</p>
+ *
+ * <p>Calls with integer inputs and streaming calls are passed straight to the
+ * wrapped surrogate.</p>
+ */
+public class BatchingSurrogate implements Surrogate, AutoCloseable {
+
+	private final Surrogate delegate;
+	private final int maxBatch;
+	private final long maxDelayNanos;
+	private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+	private final Thread dispatcher;
+	// Guards closed together with enqueuing, so no request is queued after the
+	// dispatcher has made its final pass over the queue
+	private final Object lifecycle = new Object();
+	private volatile boolean closed = false;
+
+	private static final class Request {
+		final SurrogateBatch batch;
+		final CompletableFuture<float[][]> result = new CompletableFuture<float[][]>();
+
+		Request(SurrogateBatch batch) {
+			this.batch = batch;
+		}
+	}
+
+	private static final class ShapeKey {
+		final int[] lagLength;
+
+		ShapeKey(int[] lagLength) {
+			this.lagLength = lagLength;
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(lagLength);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof ShapeKey && Arrays.equals(lagLength, ((ShapeKey) obj).lagLength);
+		}
+	}
+
+	/**
+	 * Wraps a surrogate
+	 *
+	 * @param delegate        surrogate that evaluates the combined batches
+	 * @param maxBatch        number of rows at which a combined batch is sent
+	 *                        without waiting further
+	 * @param maxDelayMicros  longest time to wait for other requests after the
+	 *                        first one arrives, in microseconds
+	 */
+	public BatchingSurrogate(Surrogate delegate, int maxBatch, long maxDelayMicros) {
+		if (maxBatch < 1 || maxDelayMicros < 0) {
+			throw new IllegalArgumentException("maxBatch must be positive and maxDelayMicros non-negative");
+		}
+		this.delegate = delegate;
+		this.maxBatch = maxBatch;
+		this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+		this.dispatcher = new Thread(this::dispatch, "calsurrogate-batching-" + delegate.identifier());
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Queues a batch for evaluation
+	 *
+	 * @param batch float inputs in [feature][batch][lag] layout; must not be
+	 *              modified until the result is complete
+	 * @return future holding one output row per batch member
+	 */
+	public CompletableFuture<float[][]> estimateAsync(SurrogateBatch batch) {
+		Request request = new Request(batch);
+		synchronized (lifecycle) {
+			if (!closed) {
+				queue.add(request);
+				return request.result;
+			}
+		}
+		request.result.completeExceptionally(new IllegalStateException("BatchingSurrogate is closed"));
+		return request.result;
+	}
+
+	@Override
+	public float[][] estimate(SurrogateBatch batch) {
+		try {
+			return estimateAsync(batch).join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public float[][] estimate(ArrayList<double[][]> rawData, ArrayList<long[][]> rawDataInt) {
+		if (rawDataInt != null && !rawDataInt.isEmpty()) {
+			return delegate.estimate(rawData, rawDataInt);
+		}
+		return estimate(SurrogateBatch.fromList(rawData));
+	}
+
+	private void dispatch() {
+		List<Request> pending = new ArrayList<Request>();
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				pending.add(first);
+				int rows = first.batch.getNBatch();
+				long deadline = System.nanoTime() + maxDelayNanos;
+				while (rows < maxBatch) {
+					long wait = deadline - System.nanoTime();
+					Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					pending.add(next);
+					rows += next.batch.getNBatch();
+				}
+				runPending(pending);
+			} catch (InterruptedException e) {
+				break;
+			} catch (Throwable t) {
+				// Keep serving later requests whatever went wrong with these
+				for (Request r : pending) {
+					r.result.completeExceptionally(t);
+				}
+			} finally {
+				pending.clear();
+			}
+		}
+		// After an interrupt the surrogate counts as closed; anything left is
+		// failed rather than left hanging
+		synchronized (lifecycle) {
+			closed = true;
+		}
+		failQueued();
+	}
+
+	private void failQueued() {
+		Request r;
+		while ((r = queue.poll()) != null) {
+			r.result.completeExceptionally(new IllegalStateException("BatchingSurrogate is closed"));
+		}
+	}
+
+	/**
+	 * Evaluates collected requests, one delegate call per distinct input shape
+	 */
+	private void runPending(List<Request> pending) {
+		Map<ShapeKey, List<Request>> byShape = new LinkedHashMap<ShapeKey, List<Request>>();
+		for (Request r : pending) {
+			ShapeKey key = new ShapeKey(r.batch.lagLengths());
+			List<Request> group = byShape.get(key);
+			if (group == null) {
+				group = new ArrayList<Request>();
+				byShape.put(key, group);
+			}
+			group.add(r);
+		}
+		for (List<Request> group : byShape.values()) {
+			try {
+				if (group.size() == 1) {
+					Request r = group.get(0);
+					r.result.complete(delegate.estimate(r.batch));
+					continue;
+				}
+				List<SurrogateBatch> batches = new ArrayList<SurrogateBatch>(group.size());
+				for (Request r : group) {
+					batches.add(r.batch);
+				}
+				float[][] out = delegate.estimate(SurrogateBatch.concat(batches));
+				int start = 0;
+				for (Request r : group) {
+					int n = r.batch.getNBatch();
+					r.result.complete(Arrays.copyOfRange(out, start, start + n));
+					start += n;
+				}
+			} catch (Throwable e) {
+				// Errors from the delegate too, so that callers are not left
+				// waiting on a result that never comes
+				for (Request r : group) {
+					r.result.completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the dispatcher after the requests already queued have been served.
+	 * Later calls fail with IllegalStateException. The wrapped surrogate is not
+	 * closed.
+	 */
+	@Override
+	public void close() {
+		synchronized (lifecycle) {
+			closed = true;
+		}
+		try {
+			dispatcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the wrapped surrogate
+	 */
+	public Surrogate getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public boolean supportsStreaming() {
+		return delegate.supportsStreaming();
+	}
+
+	@Override
+	public float[][] estimateStreaming(SurrogateBatch histories, int nSteps) {
+		return delegate.estimateStreaming(histories, nSteps);
+	}
+
+	@Override
+	public String identifier() {
+		return delegate.identifier();
+	}
+
+	@Override
+	public boolean isEquivalent(Surrogate other) {
+		if (other == this) {
+			return true;
+		}
+		Surrogate unwrapped = other instanceof BatchingSurrogate ? ((BatchingSurrogate) other).delegate : other;
+		return delegate.isEquivalent(unwrapped);
+	}
+
+	@Override
+	public String getName() {
+		return delegate.getName();
+	}
+
+	@Override
+	public int getInputIndex(String inputName) {
+		return delegate.getInputIndex(inputName);
+	}
+
+	@Override
+	public DailyToSurrogate getDailyToSurrogate() {
+		return delegate.getDailyToSurrogate();
+	}
+
+	@Override
+	public int getNFeatures() {
+		return delegate.getNFeatures();
+	}
+}
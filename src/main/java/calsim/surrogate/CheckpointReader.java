@@ -0,0 +1,368 @@
+package calsim.surrogate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Reads variables from the checkpoint stored in the {@code variables} directory
+ * of a TensorFlow saved model. The index ({@code variables.index}) is an
+ * uncompressed table whose entries give the dtype, shape and location of each
+ * tensor within the data shards ({@code variables.data-?????-of-?????}), which
+ * hold the raw little endian values.
+ *
+ * <p>Keras checkpoints name most variables after the layer that owns them
+ * (e.g. {@code layer_with_weights-6/kernel}), but some, such as the cells of
+ * recurrent layers, are stored under generic keys. {@link #resolve(String)}
+ * follows the checkpointed object graph so that any variable can be found by its
+ * object path, for instance {@code layer-25/cell/kernel}.</p>
+ */
+public class CheckpointReader {
+
+	public static final int DT_FLOAT = 1;
+	public static final int DT_STRING = 7;
+	public static final int DT_INT64 = 9;
+
+	private static final long TABLE_MAGIC = 0xdb4775248b80fb57L;
+	private static final int FOOTER_LENGTH = 48;
+	private static final String OBJECT_GRAPH_KEY = "_CHECKPOINTABLE_OBJECT_GRAPH";
+	private static final String VARIABLE_VALUE = "VARIABLE_VALUE";
+
+	private static final class Entry {
+		int dtype;
+		long[] shape = new long[0];
+		int shard;
+		long offset;
+		long size;
+	}
+
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+	private final byte[][] shards;
+	// Object graph: children by local name and variable checkpoint key for each node
+	private List<Map<String, Integer>> nodeChildren;
+	private List<String> nodeVariable;
+
+	/**
+	 * Opens the checkpoint of a saved model
+	 *
+	 * @param modelDir directory containing saved_model.pb and the variables
+	 *                 directory
+	 * @throws IOException if the checkpoint cannot be read or is compressed
+	 */
+	public CheckpointReader(String modelDir) throws IOException {
+		File varDir = new File(modelDir, "variables");
+		byte[] index = Files.readAllBytes(new File(varDir, "variables.index").toPath());
+		int numShards = readIndex(index);
+		shards = new byte[numShards][];
+		for (int i = 0; i < numShards; i++) {
+			String name = String.format("variables.data-%05d-of-%05d", i, numShards);
+			shards[i] = Files.readAllBytes(new File(varDir, name).toPath());
+		}
+	}
+
+	private int readIndex(byte[] index) throws IOException {
+		if (index.length < FOOTER_LENGTH) {
+			throw new IOException("Checkpoint index is truncated");
+		}
+		ByteBuffer footer = ByteBuffer.wrap(index, index.length - 8, 8).order(ByteOrder.LITTLE_ENDIAN);
+		if (footer.getLong() != TABLE_MAGIC) {
+			throw new IOException("Checkpoint index has bad magic number");
+		}
+		ProtoReader handles = new ProtoReader(index, index.length - FOOTER_LENGTH, FOOTER_LENGTH - 8);
+		handles.varint(); // metaindex offset, unused
+		handles.varint(); // metaindex size
+		int indexOffset = (int) handles.varint();
+		int indexSize = (int) handles.varint();
+
+		int numShards = 1;
+		List<byte[][]> indexEntries = readBlock(index, indexOffset, indexSize);
+		for (byte[][] blockEntry : indexEntries) {
+			ProtoReader handle = new ProtoReader(blockEntry[1]);
+			int offset = (int) handle.varint();
+			int size = (int) handle.varint();
+			for (byte[][] kv : readBlock(index, offset, size)) {
+				String key = new String(kv[0], StandardCharsets.UTF_8);
+				if (key.isEmpty()) {
+					numShards = readHeader(kv[1]);
+				} else {
+					entries.put(key, readEntry(kv[1]));
+				}
+			}
+		}
+		return numShards;
+	}
+
+	/**
+	 * Decodes a table block of prefix compressed key/value pairs
+	 */
+	private static List<byte[][]> readBlock(byte[] data, int offset, int size) throws IOException {
+		int compression = data[offset + size];
+		if (compression != 0) {
+			throw new IOException("Compressed checkpoint tables are not supported");
+		}
+		ByteBuffer trailer = ByteBuffer.wrap(data, offset + size - 4, 4).order(ByteOrder.LITTLE_ENDIAN);
+		int numRestarts = trailer.getInt();
+		int end = offset + size - 4 - 4 * numRestarts;
+
+		List<byte[][]> out = new ArrayList<byte[][]>();
+		byte[] key = new byte[0];
+		int pos = offset;
+		while (pos < end) {
+			ProtoReader r = new ProtoReader(data, pos, end - pos);
+			int shared = (int) r.varint();
+			int nonShared = (int) r.varint();
+			int valueLen = (int) r.varint();
+			pos = end - r.remaining();
+			byte[] newKey = new byte[shared + nonShared];
+			System.arraycopy(key, 0, newKey, 0, shared);
+			System.arraycopy(data, pos, newKey, shared, nonShared);
+			pos += nonShared;
+			byte[] value = new byte[valueLen];
+			System.arraycopy(data, pos, value, 0, valueLen);
+			pos += valueLen;
+			key = newKey;
+			out.add(new byte[][] { key, value });
+		}
+		return out;
+	}
+
+	private static int readHeader(byte[] header) {
+		int numShards = 1;
+		ProtoReader r = new ProtoReader(header);
+		while (r.next()) {
+			if (r.field() == 1) {
+				numShards = (int) r.varint();
+			} else {
+				r.skip();
+			}
+		}
+		return numShards;
+	}
+
+	private static Entry readEntry(byte[] value) {
+		Entry e = new Entry();
+		ProtoReader r = new ProtoReader(value);
+		while (r.next()) {
+			switch (r.field()) {
+			case 1:
+				e.dtype = (int) r.varint();
+				break;
+			case 2:
+				e.shape = readShape(r.message());
+				break;
+			case 3:
+				e.shard = (int) r.varint();
+				break;
+			case 4:
+				e.offset = r.varint();
+				break;
+			case 5:
+				e.size = r.varint();
+				break;
+			default:
+				r.skip();
+			}
+		}
+		return e;
+	}
+
+	private static long[] readShape(ProtoReader shape) {
+		List<Long> dims = new ArrayList<Long>();
+		while (shape.next()) {
+			if (shape.field() == 2) {
+				ProtoReader dim = shape.message();
+				long size = 0;
+				while (dim.next()) {
+					if (dim.field() == 1) {
+						size = dim.varint();
+					} else {
+						dim.skip();
+					}
+				}
+				dims.add(size);
+			} else {
+				shape.skip();
+			}
+		}
+		long[] out = new long[dims.size()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = dims.get(i);
+		}
+		return out;
+	}
+
+	/**
+	 * Returns the keys of all tensors in the checkpoint
+	 */
+	public Set<String> keys() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	public boolean contains(String key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Returns the shape of a tensor, empty for a scalar
+	 */
+	public long[] getShape(String key) {
+		return entry(key).shape.clone();
+	}
+
+	/**
+	 * Returns the values of a float tensor, flattened in row-major order
+	 */
+	public float[] getFloats(String key) {
+		Entry e = entry(key);
+		if (e.dtype != DT_FLOAT) {
+			throw new IllegalArgumentException("Checkpoint tensor " + key + " has dtype " + e.dtype + ", not float");
+		}
+		float[] out = new float[(int) (e.size / Float.BYTES)];
+		ByteBuffer.wrap(shards[e.shard], (int) e.offset, (int) e.size).order(ByteOrder.LITTLE_ENDIAN)
+				.asFloatBuffer().get(out);
+		return out;
+	}
+
+	/**
+	 * Returns the value of a scalar string tensor
+	 */
+	private byte[] getScalarString(String key) {
+		Entry e = entry(key);
+		if (e.dtype != DT_STRING) {
+			throw new IllegalArgumentException("Checkpoint tensor " + key + " is not a string");
+		}
+		// String tensors are stored as the varint lengths, a checksum of the lengths and then the bytes
+		ProtoReader r = new ProtoReader(shards[e.shard], (int) e.offset, (int) e.size);
+		int len = (int) r.varint();
+		int start = (int) (e.offset + e.size) - r.remaining() + 4;
+		byte[] out = new byte[len];
+		System.arraycopy(shards[e.shard], start, out, 0, len);
+		return out;
+	}
+
+	private Entry entry(String key) {
+		Entry e = entries.get(key);
+		if (e == null) {
+			throw new IllegalArgumentException("Tensor " + key + " not found in checkpoint");
+		}
+		return e;
+	}
+
+	/**
+	 * Returns the checkpoint key of the variable at an object path such as
+	 * {@code layer-15/kernel}, following the checkpointed object graph from the
+	 * root (the model).
+	 *
+	 * @param objectPath local names separated by '/'
+	 * @return checkpoint key of the variable
+	 * @throws IllegalArgumentException if the path does not lead to a variable
+	 */
+	public String resolve(String objectPath) {
+		if (nodeChildren == null) {
+			readObjectGraph();
+		}
+		int node = 0;
+		for (String name : objectPath.split("/")) {
+			Integer child = nodeChildren.get(node).get(name);
+			if (child == null) {
+				throw new IllegalArgumentException("Object path " + objectPath + " not found in checkpoint at " + name);
+			}
+			node = child;
+		}
+		String key = nodeVariable.get(node);
+		if (key == null) {
+			throw new IllegalArgumentException("Object path " + objectPath + " is not a variable");
+		}
+		return key;
+	}
+
+	/**
+	 * Returns true if the object path leads to a variable
+	 */
+	public boolean hasVariable(String objectPath) {
+		try {
+			resolve(objectPath);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the values of the float variable at an object path
+	 */
+	public float[] getVariable(String objectPath) {
+		return getFloats(resolve(objectPath));
+	}
+
+	/**
+	 * Returns the shape of the variable at an object path
+	 */
+	public long[] getVariableShape(String objectPath) {
+		return getShape(resolve(objectPath));
+	}
+
+	private void readObjectGraph() {
+		List<Map<String, Integer>> children = new ArrayList<Map<String, Integer>>();
+		List<String> variables = new ArrayList<String>();
+		ProtoReader graph = new ProtoReader(getScalarString(OBJECT_GRAPH_KEY));
+		while (graph.next()) {
+			if (graph.field() != 1) {
+				graph.skip();
+				continue;
+			}
+			ProtoReader node = graph.message();
+			Map<String, Integer> nodeKids = new HashMap<String, Integer>();
+			String variable = null;
+			while (node.next()) {
+				if (node.field() == 1) {
+					ProtoReader ref = node.message();
+					int id = 0;
+					String name = null;
+					while (ref.next()) {
+						if (ref.field() == 1) {
+							id = (int) ref.varint();
+						} else if (ref.field() == 2) {
+							name = ref.string();
+						} else {
+							ref.skip();
+						}
+					}
+					nodeKids.put(name, id);
+				} else if (node.field() == 2) {
+					ProtoReader attr = node.message();
+					String name = null;
+					String key = null;
+					while (attr.next()) {
+						if (attr.field() == 1) {
+							name = attr.string();
+						} else if (attr.field() == 3) {
+							key = attr.string();
+						} else {
+							attr.skip();
+						}
+					}
+					if (VARIABLE_VALUE.equals(name)) {
+						variable = key;
+					}
+				} else {
+					node.skip();
+				}
+			}
+			children.add(nodeKids);
+			variables.add(variable);
+		}
+		nodeVariable = variables;
+		nodeChildren = children;
+	}
+}
@@ -0,0 +1,255 @@
+package calsim.surrogate;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache that may be shared by concurrent callers. {@link LRUCache}
+ * relinks its entries on every get, so even reads must be serialized. This
+ * cache instead splits the entries over a number of stripes by key hash. Each
+ * stripe is a small access ordered map with its own lock and evicts its own
+ * least recently used entry when it is full. Callers working on different keys
+ * rarely contend, and eviction is least recently used within a stripe, which
+ * approximates LRU over the whole cache.
+ *
+ * <p>Hits, misses and evictions are counted. Only {@link #get(Object)} counts
+ * towards hits and misses, so callers should use get and test for null rather
+ * than containsKey followed by get, which may also lose the entry to eviction
+ * in between. Null keys and values are not allowed.</p>
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentLRUCache<K, V> extends AbstractMap<K, V> {
+
+	private static final int MAX_STRIPES = 16;
+	/** Smallest number of entries per stripe before fewer stripes are used */
+	private static final int MIN_STRIPE_SIZE = 8;
+
+	private static final class Stripe<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+		final ReentrantLock lock = new ReentrantLock();
+		final int maxSize;
+		boolean evicted;
+
+		Stripe(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			evicted = size() > maxSize;
+			return evicted;
+		}
+	}
+
+	private final Stripe<K, V>[] stripes;
+	private final int maxSize;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates a cache with a number of stripes suited to the size
+	 *
+	 * @param maxSize greatest number of entries held
+	 */
+	public ConcurrentLRUCache(int maxSize) {
+		this(maxSize, Math.max(1, Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, maxSize / MIN_STRIPE_SIZE)))));
+	}
+
+	/**
+	 * Creates a cache
+	 *
+	 * @param maxSize  greatest number of entries held, divided as evenly as
+	 *                 possible between the stripes
+	 * @param nStripes number of independently locked stripes, rounded up to a
+	 *                 power of two
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public ConcurrentLRUCache(int maxSize, int nStripes) {
+		if (maxSize < 1 || nStripes < 1) {
+			throw new IllegalArgumentException("maxSize and nStripes must be positive");
+		}
+		int n = Integer.highestOneBit(nStripes);
+		if (n < nStripes) {
+			n <<= 1;
+		}
+		// Every stripe must hold at least one entry
+		while (n > maxSize) {
+			n >>= 1;
+		}
+		this.maxSize = maxSize;
+		this.stripes = new Stripe[n];
+		// The first maxSize % n stripes take one extra entry so the sizes add up
+		// to maxSize exactly
+		for (int i = 0; i < n; i++) {
+			stripes[i] = new Stripe<K, V>(maxSize / n + (i < maxSize % n ? 1 : 0));
+		}
+	}
+
+	private Stripe<K, V> stripeFor(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[h & (stripes.length - 1)];
+	}
+
+	@Override
+	public V get(Object key) {
+		Stripe<K, V> stripe = stripeFor(key);
+		V value;
+		stripe.lock.lock();
+		try {
+			value = stripe.get(key);
+		} finally {
+			stripe.lock.unlock();
+		}
+		if (value == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		Stripe<K, V> stripe = stripeFor(key);
+		stripe.lock.lock();
+		try {
+			return stripe.containsKey(key);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	@Override
+	public V put(K key, V value) {
+		if (value == null) {
+			throw new NullPointerException("ConcurrentLRUCache does not hold null values");
+		}
+		Stripe<K, V> stripe = stripeFor(key);
+		stripe.lock.lock();
+		try {
+			V old = stripe.put(key, value);
+			if (stripe.evicted) {
+				stripe.evicted = false;
+				evictions.increment();
+			}
+			return old;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	@Override
+	public V remove(Object key) {
+		Stripe<K, V> stripe = stripeFor(key);
+		stripe.lock.lock();
+		try {
+			return stripe.remove(key);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (Stripe<K, V> stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				stripe.clear();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Stripe<K, V> stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				size += stripe.size();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns a snapshot of the entries, taken one stripe at a time. Changes to
+	 * the cache are not reflected in it and it cannot be modified.
+	 */
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		Set<Map.Entry<K, V>> entries = new HashSet<Map.Entry<K, V>>();
+		for (Stripe<K, V> stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				for (Map.Entry<K, V> e : stripe.entrySet()) {
+					entries.add(new AbstractMap.SimpleImmutableEntry<K, V>(e));
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		return Collections.unmodifiableSet(entries);
+	}
+
+	/**
+	 * Returns the greatest number of entries held
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getNStripes() {
+		return stripes.length;
+	}
+
+	/**
+	 * Number of calls to get that found a value
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Number of calls to get that found nothing
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Number of entries removed to make room for new ones
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Sets the hit, miss and eviction counts to zero
+	 */
+	public void resetStats() {
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "ConcurrentLRUCache[size=" + size() + ", maxSize=" + maxSize + ", hits=" + getHitCount() + ", misses="
+				+ getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+}
@@ -28,10 +28,45 @@ public interface DailyToSurrogate {
      * CalSim ANN packaging for MLPs uses a set of individual daily values followed by block 
      * averages computed over historical periods.</p>
      *
+     * <p>The default implementation fills a one row buffer with
+     * {@link #dailyToSurrogateInputs(double[], int, int, float[], int)}.</p>
+     *
      * @param data         the array containing the full daily history.
      * @param currentIndex the index in the array corresponding to the current day.
      * @return a surrogate input vector for the ANN.
      */
-	public double[] dailyToSurrogateInput(double[] data, int currentIndex);
+	public default double[] dailyToSurrogateInput(double[] data, int currentIndex) {
+		float[] row = new float[getInputLength()];
+		dailyToSurrogateInputs(data, currentIndex, 1, row, 0);
+		double[] out = new double[row.length];
+		for (int i = 0; i < row.length; i++) {
+			out[i] = row[i];
+		}
+		return out;
+	}
+
+    /**
+     * Converts the daily history for a run of consecutive days, writing the
+     * surrogate inputs into a caller supplied buffer rather than allocating a
+     * vector per day.
+     *
+     * <p>The rows are written contiguously: the input for day firstIndex+k
+     * occupies {@code out[outOffset + k*getInputLength()]} onward. This is the
+     * layout of consecutive batch members of one feature in a
+     * {@link SurrogateBatch}, so a month of inputs can be written straight into
+     * {@link SurrogateBatch#getData()} at {@link SurrogateBatch#rowOffset(int, int)}.</p>
+     *
+     * @param data       the array containing the full daily history.
+     * @param firstIndex the index in the array of the first day to evaluate.
+     * @param nIndex     the number of consecutive days to evaluate.
+     * @param out        buffer receiving nIndex rows of length {@link #getInputLength()}.
+     * @param outOffset  index in out of the first row.
+     */
+	public void dailyToSurrogateInputs(double[] data, int firstIndex, int nIndex, float[] out, int outOffset);
+
+    /**
+     * Returns the length of the surrogate input vector produced for one day.
+     */
+	public int getInputLength();
 
 }
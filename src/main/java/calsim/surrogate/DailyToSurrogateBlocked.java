@@ -37,6 +37,21 @@ public class DailyToSurrogateBlocked implements DailyToSurrogate {
 		this.blockLen = blockLen;
 	}
 
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		DailyToSurrogateBlocked other = (DailyToSurrogateBlocked) obj;
+		return nDaily == other.nDaily && nBlock == other.nBlock && blockLen == other.blockLen;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * nDaily + nBlock) + blockLen;
+	}
+
 	/**
 	 * The traditional CalSIM ANN packages the daily data as 7 individual daily
 	 * values plus 10 aggregations of 11 days apiece.
@@ -46,6 +61,7 @@ public class DailyToSurrogateBlocked implements DailyToSurrogate {
 	 * @param currentIndex
 	 * @returns
 	 */
+	@Override
 	public double[] dailyToSurrogateInput(double[] input, int currentIndex) {
 		// Number of predictors that are CalSIM values, (e.g. 6-7 flows at different
 		// locations)
@@ -74,4 +90,57 @@ public class DailyToSurrogateBlocked implements DailyToSurrogate {
 		return outData;
 	}
 
+	/**
+	 * Fills the surrogate inputs for a run of consecutive days. Equivalent to
+	 * calling {@link #dailyToSurrogateInput(double[], int)} for currentIndex
+	 * running from firstIndex to firstIndex+nIndex-1, but the block sums are
+	 * taken as differences of one prefix sum over the history, so each day costs
+	 * nDaily+nBlock operations however long the blocks are.
+	 *
+	 * @param input      the array containing the full daily history
+	 * @param firstIndex index in the history of the first day to evaluate
+	 * @param nIndex     number of consecutive days to evaluate
+	 * @param out        flat output; the input for day firstIndex+k is written
+	 *                   to the {@link #getInputLength()} values starting at
+	 *                   outOffset+k*getInputLength()
+	 */
+	@Override
+	public void dailyToSurrogateInputs(double[] input, int firstIndex, int nIndex, float[] out, int outOffset) {
+		// Earliest day reached back to by the first evaluation
+		int histStart = firstIndex - nDaily - blockLen * nBlock + 1;
+		double[] prefix = prefixSums(input, histStart, firstIndex + nIndex);
+		double fBlockLen = (double) blockLen;
+		int pos = outOffset;
+		for (int iday = 0; iday < nIndex; iday++) {
+			int currentIndex = firstIndex + iday;
+			for (int ndxRev = 0; ndxRev < nDaily; ndxRev++) {
+				out[pos++] = (float) input[currentIndex - ndxRev];
+			}
+			for (int iblock = 0; iblock < nBlock; iblock++) {
+				int blockStart = currentIndex - nDaily - blockLen * (iblock + 1) + 1 - histStart;
+				out[pos++] = (float) ((prefix[blockStart + blockLen] - prefix[blockStart]) / fBlockLen);
+			}
+		}
+	}
+
+	/**
+	 * Returns prefix[k], the sum of input[histStart .. histStart+k-1], for k up
+	 * to histStop-histStart
+	 */
+	private static double[] prefixSums(double[] input, int histStart, int histStop) {
+		double[] prefix = new double[histStop - histStart + 1];
+		for (int k = 0; k < histStop - histStart; k++) {
+			prefix[k + 1] = prefix[k] + input[histStart + k];
+		}
+		return prefix;
+	}
+
+	/**
+	 * Returns the length of the surrogate input, nDaily+nBlock
+	 */
+	@Override
+	public int getInputLength() {
+		return nDaily + nBlock;
+	}
+
 }
@@ -32,6 +32,21 @@ public class DailyToSurrogateDefault implements DailyToSurrogate {
 		this.reverse = rev;
 	}
 
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		DailyToSurrogateDefault other = (DailyToSurrogateDefault) obj;
+		return lenHistory == other.lenHistory && reverse == other.reverse;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * lenHistory + (reverse ? 1 : 0);
+	}
+
     /**
      * Converts the daily history into a surrogate input vector by either reversing the order or 
      * returning it in chronological order.
@@ -59,6 +74,32 @@ public class DailyToSurrogateDefault implements DailyToSurrogate {
 		return out;
 	}
     
+    /**
+     * Copies the history window of each day in the run into the buffer.
+     */
+    @Override
+	public void dailyToSurrogateInputs(double[] data, int firstIndex, int nIndex, float[] out, int outOffset) {
+		int pos = outOffset;
+		for (int iday = 0; iday < nIndex; iday++) {
+			int currentIndex = firstIndex + iday;
+			if (isReverse()) {
+				for (int i = 0; i < lenHistory; i++) {
+					out[pos++] = (float) data[currentIndex - i];
+				}
+			} else {
+				int start = currentIndex - lenHistory + 1;
+				for (int i = 0; i < lenHistory; i++) {
+					out[pos++] = (float) data[start + i];
+				}
+			}
+		}
+	}
+
+    @Override
+	public int getInputLength() {
+		return lenHistory;
+	}
+
     /**
      * Returns the length of the history window (number of days).
      *
@@ -1,8 +1,6 @@
 package calsim.surrogate;
 
-import java.time.YearMonth;
 import java.io.*;
-import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -28,6 +26,7 @@ import java.util.Random;
 public abstract class DisaggregateMonths {
 
 	private int nMonth;
+	private volatile int version;
 
 	/**
 	 * Constructor based on number of months in memory, current month inclusive.
@@ -43,14 +42,43 @@ public abstract class DisaggregateMonths {
 		return nMonth;
 	}
 
+	/**
+	 * To be called by subclasses whenever a parameter changes the daily series
+	 * produced, so that series cached by {@link SurrogateMonth} are discarded
+	 */
+	protected void parametersChanged() {
+		version++;
+	}
+
+	/**
+	 * Count of parameter changes, compared by caches of the daily series
+	 */
+	int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Disaggregators are equal if they are of the same class with the same
+	 * parameters, so they produce the same daily series. Subclasses with
+	 * parameters of their own extend this.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		return nMonth == ((DisaggregateMonths) obj).nMonth;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * getClass().hashCode() + nMonth;
+	}
+
 
 	public int offsetFirstMonth(int year, int month) {
-		int[] daysMonth = this.daysMonth(year, month);
-		int cum = 0;
-		for (int i = 1; i < daysMonth.length; i++) {
-			cum += daysMonth[i];
-		}
-		return cum;
+		return MonthCalendar.offsetFirstMonth(year, month, nMonth);
 	}
 
 	/**
@@ -68,6 +96,55 @@ public abstract class DisaggregateMonths {
 	 */
 	public abstract double[] apply(int year, int month, double[] dataRev);
 
+	/**
+	 * Disaggregates several monthly series for the same month at once, writing
+	 * into preallocated rows. Equivalent to calling
+	 * {@link #apply(int, int, double[])} on each row of dataRev; subclasses
+	 * override it to set up the calendar once for the whole batch.
+	 *
+	 * @param year    the current year
+	 * @param month   the current month (January = 1)
+	 * @param dataRev one array of monthly data per batch member, each in reverse
+	 *                chronological order
+	 * @param out     one row per batch member receiving the daily series, each at
+	 *                least {@link #getOutputLength(int, int)} long
+	 */
+	public void applyBatch(int year, int month, double[][] dataRev, double[][] out) {
+		for (int ib = 0; ib < dataRev.length; ib++) {
+			double[] daily = apply(year, month, dataRev[ib]);
+			System.arraycopy(daily, 0, out[ib], 0, daily.length);
+		}
+	}
+
+	/**
+	 * Disaggregates dataRev starting from the daily series already computed for
+	 * baseRev, when the two differ only in the current month (index 0). Solvers
+	 * and grids vary just the current month of some inputs, so disaggregators
+	 * for which the current month affects only part of the daily series, or
+	 * affects it linearly, can skip most of the work. The default does not
+	 * support this and returns false.
+	 *
+	 * @param year      the current year
+	 * @param month     the current month (January = 1)
+	 * @param baseRev   monthly data the base series was computed from
+	 * @param baseDaily the result of {@link #apply(int, int, double[])} for baseRev
+	 * @param dataRev   monthly data equal to baseRev apart from index 0
+	 * @param out       receives the daily series for dataRev
+	 * @return true if out was filled, false if the caller must call apply()
+	 */
+	public boolean updateCurrentMonth(int year, int month, double[] baseRev, double[] baseDaily, double[] dataRev,
+			double[] out) {
+		return false;
+	}
+
+	/**
+	 * Returns the length of the daily series produced by
+	 * {@link #apply(int, int, double[])}. The default is {@link #getNDay(int, int)}.
+	 */
+	public int getOutputLength(int year, int month) {
+		return getNDay(year, month);
+	}
+
 	/**
 	 * Lists the number of days in month for the nMonth most recent months ending in
 	 * month, in decending order (
@@ -77,13 +154,7 @@ public abstract class DisaggregateMonths {
 	 * @return integer array of number of days
 	 */
 	public int[] daysMonth(int year, int month) {
-		YearMonth yMonth = YearMonth.of(year, month);
-		int[] out = new int[nMonth];
-		for (int iMonth = 0; iMonth < nMonth; iMonth++) {
-			YearMonth minus = yMonth.minusMonths((long) iMonth);
-			out[iMonth] = minus.lengthOfMonth();
-		}
-		return out;
+		return MonthCalendar.daysMonth(year, month, nMonth);
 	}
 	
 	/**
@@ -94,8 +165,7 @@ public abstract class DisaggregateMonths {
 	 * @return total length of buffer
 	 */
 	public int getNDay(int year, int month) {
-		int[] array = daysMonth(year, month);
-		return Arrays.stream(array).sum();
+		return MonthCalendar.daysInHistory(year, month, nMonth);
 	}
 
 	/**
@@ -117,10 +187,9 @@ public abstract class DisaggregateMonths {
 	public double[][] asIrregArray(int year, int month, double[] dataRev) {
 		double[][] ts = new double[2][nMonth + 1];
 		ts[0][0] = 0.;
-		int[] dMon = daysMonth(year, month);
 		for (int iMonth = 0; iMonth < nMonth; iMonth++) {
 			int revIndex = nMonth - 1 - iMonth;
-			ts[0][iMonth + 1] = ts[0][iMonth] + (double) dMon[revIndex];
+			ts[0][iMonth + 1] = ts[0][iMonth] + (double) MonthCalendar.lengthOfMonthBefore(year, month, revIndex);
 			ts[1][iMonth] = dataRev[revIndex];
 		}
 		// This populates the undefined value in last index of data
@@ -52,6 +52,19 @@ public class DisaggregateMonthsDaysToOps extends DisaggregateMonths {
 		this.endOp = endOp;
 	}
 
+	@Override
+	public boolean equals(Object obj) {
+		if (!super.equals(obj))
+			return false;
+		DisaggregateMonthsDaysToOps other = (DisaggregateMonthsDaysToOps) obj;
+		return Double.compare(startOp, other.startOp) == 0 && Double.compare(endOp, other.endOp) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * super.hashCode() + Double.hashCode(startOp)) + Double.hashCode(endOp);
+	}
+
     /**
      * Disaggregates the reverse-chronologically ordered monthly data into a daily time series.
      *
@@ -100,6 +113,45 @@ public class DisaggregateMonthsDaysToOps extends DisaggregateMonths {
 		return out;
 	}
 
+    @Override
+	public void applyBatch(int year, int month, double[][] dataRev, double[][] out) {
+		int nMonth = getNMonth();
+		for (int ib = 0; ib < dataRev.length; ib++) {
+			double[] row = out[ib];
+			int istart = 0;
+			for (int revIndex = nMonth - 1; revIndex >= 0; revIndex--) {
+				int ilen = istart + MonthCalendar.lengthOfMonthBefore(year, month, revIndex);
+				int ilast = istart + (int) dataRev[ib][revIndex];
+				for (int iFine = istart; iFine < ilast; iFine++) {
+					row[iFine] = getStartOp();
+				}
+				for (int iFine = ilast; iFine < ilen; iFine++) {
+					row[iFine] = getEndOp();
+				}
+				istart = ilen;
+			}
+		}
+	}
+
+    /**
+     * Only the days of the current month change
+     */
+    @Override
+	public boolean updateCurrentMonth(int year, int month, double[] baseRev, double[] baseDaily, double[] dataRev,
+			double[] out) {
+		int istart = offsetFirstMonth(year, month);
+		int ilen = getNDay(year, month);
+		int ilast = istart + (int) dataRev[0];
+		System.arraycopy(baseDaily, 0, out, 0, istart);
+		for (int iFine = istart; iFine < ilast; iFine++) {
+			out[iFine] = getStartOp();
+		}
+		for (int iFine = ilast; iFine < ilen; iFine++) {
+			out[iFine] = getEndOp();
+		}
+		return true;
+	}
+
     /**
      * Returns the operational value assigned to days during the operating period.
      *
@@ -116,6 +168,7 @@ public class DisaggregateMonthsDaysToOps extends DisaggregateMonths {
      */	
 	public void setStartOp(double startOp) {
 		this.startOp = startOp;
+		parametersChanged();
 	}
 
     /**
@@ -134,6 +187,7 @@ public class DisaggregateMonthsDaysToOps extends DisaggregateMonths {
      */	
 	public void setEndOp(double endOp) {
 		this.endOp = endOp;
+		parametersChanged();
 	}
 
 }
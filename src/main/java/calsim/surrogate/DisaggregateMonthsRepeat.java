@@ -1,5 +1,7 @@
 package calsim.surrogate;
 
+import java.util.Arrays;
+
 /**
  * DisaggregationMonths that repeats the monthly value through the month
  */
@@ -28,4 +30,31 @@ public class DisaggregateMonthsRepeat extends DisaggregateMonths {
 		return out;
 	}
 
+	@Override
+	public void applyBatch(int year, int month, double[][] dataRev, double[][] out) {
+		int nMonth = getNMonth();
+		for (int ib = 0; ib < dataRev.length; ib++) {
+			double[] row = out[ib];
+			int istart = 0;
+			for (int revIndex = nMonth - 1; revIndex >= 0; revIndex--) {
+				int iend = istart + MonthCalendar.lengthOfMonthBefore(year, month, revIndex);
+				Arrays.fill(row, istart, iend, dataRev[ib][revIndex]);
+				istart = iend;
+			}
+		}
+	}
+
+	/**
+	 * Only the days of the current month change
+	 */
+	@Override
+	public boolean updateCurrentMonth(int year, int month, double[] baseRev, double[] baseDaily, double[] dataRev,
+			double[] out) {
+		int nDay = getNDay(year, month);
+		int istart = offsetFirstMonth(year, month);
+		System.arraycopy(baseDaily, 0, out, 0, istart);
+		Arrays.fill(out, istart, nDay, dataRev[0]);
+		return true;
+	}
+
 }
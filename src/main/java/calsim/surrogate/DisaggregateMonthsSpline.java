@@ -1,11 +1,49 @@
 package calsim.surrogate;
 
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Monthly to daily disaggregation using a conservative spline (rational
  * histospline) //TODO the spline paramter pq is kind of burrowed.
+ *
+ * <p>With the knots fixed by the calendar and fixed tension parameters, the
+ * spline fit is linear in the monthly data. The daily output for a given
+ * sequence of month lengths is therefore a fixed matrix times the monthly
+ * values. That matrix is computed once, by fitting the spline to each unit
+ * vector, and cached for all instances. Data that would engage the lower bound
+ * of the spline are fitted directly instead.</p>
  */
 public class DisaggregateMonthsSpline extends DisaggregateMonths {
 
+	private static final double PQ_SCALAR = 10;
+	private static final double YMIN = -0.00000001; // TODO fix the minimum reinforcement
+	private static final double MAX_LINEAR_VALUE = 0.5 * Double.MAX_VALUE;
+
+	/**
+	 * Daily operators keyed by the month lengths they span, oldest last
+	 */
+	private static final Map<OperatorKey, double[][]> operators = new ConcurrentHashMap<OperatorKey, double[][]>();
+
+	private static final class OperatorKey {
+		final int[] daysMonth;
+
+		OperatorKey(int[] daysMonth) {
+			this.daysMonth = daysMonth;
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(daysMonth);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof OperatorKey && Arrays.equals(daysMonth, ((OperatorKey) obj).daysMonth);
+		}
+	}
+
 	public DisaggregateMonthsSpline(int nMon) {
 		super(nMon);
 	}
@@ -25,12 +63,146 @@ public class DisaggregateMonthsSpline extends DisaggregateMonths {
 	 */
 	public double[] apply(int year, int month, double[] dataRev) {
 		double[][] ts = asIrregArray(year, month, dataRev);
-		double pqScalar = 10;
-		double[] pq = { pqScalar, pqScalar, pqScalar, pqScalar, pqScalar, pqScalar }; // TODO
+		if (!isLinear(ts[1])) {
+			return fit(ts);
+		}
+		double[][] op = operator(year, month);
+		double[] out = new double[op.length];
+		applyOperator(op, ts[1], out);
+		return out;
+	}
+
+	/**
+	 * Disaggregates a batch with one lookup of the cached operator, falling back
+	 * to a direct fit only for the rows that need it
+	 */
+	@Override
+	public void applyBatch(int year, int month, double[][] dataRev, double[][] out) {
+		int nMonth = getNMonth();
+		double[][] op = operator(year, month);
+		double[] y = new double[nMonth + 1];
+		for (int ib = 0; ib < dataRev.length; ib++) {
+			for (int iMonth = 0; iMonth < nMonth; iMonth++) {
+				y[iMonth] = dataRev[ib][nMonth - 1 - iMonth];
+			}
+			y[nMonth] = dataRev[ib][0];
+			if (isLinear(y)) {
+				applyOperator(op, y, out[ib]);
+			} else {
+				double[] daily = apply(year, month, dataRev[ib]);
+				System.arraycopy(daily, 0, out[ib], 0, daily.length);
+			}
+		}
+	}
+
+	/**
+	 * The current month enters the spline as the last monthly value and as the
+	 * terminal condition, so when both series are in the linear range the change
+	 * is the difference in that value times the sum of the last two columns of
+	 * the operator
+	 */
+	@Override
+	public boolean updateCurrentMonth(int year, int month, double[] baseRev, double[] baseDaily, double[] dataRev,
+			double[] out) {
+		int nMonth = getNMonth();
+		double[] y = new double[nMonth + 1];
+		for (int iMonth = 0; iMonth < nMonth; iMonth++) {
+			y[iMonth] = baseRev[nMonth - 1 - iMonth];
+		}
+		y[nMonth] = baseRev[0];
+		if (!isLinear(y)) {
+			return false;
+		}
+		y[nMonth - 1] = dataRev[0];
+		y[nMonth] = dataRev[0];
+		if (!isLinear(y)) {
+			return false;
+		}
+		double[][] op = operator(year, month);
+		double delta = dataRev[0] - baseRev[0];
+		for (int i = 0; i < op.length; i++) {
+			out[i] = baseDaily[i] + delta * (op[i][nMonth - 1] + op[i][nMonth]);
+		}
+		return true;
+	}
+
+	/**
+	 * The spline is evaluated on both ends of the span, one day more than
+	 * {@link #getNDay(int, int)}
+	 */
+	@Override
+	public int getOutputLength(int year, int month) {
+		return getNDay(year, month) + 1;
+	}
+
+	/**
+	 * Returns the matrix that maps the forward monthly values ts[1] of
+	 * {@link #asIrregArray(int, int, double[])}, including the repeated current
+	 * month, to the daily output of {@link #apply(int, int, double[])}. It has
+	 * one row per day plus one and getNMonth()+1 columns. The matrix is shared
+	 * and must not be modified.
+	 *
+	 * @param year  the current year
+	 * @param month the current month (January = 1)
+	 */
+	public double[][] operator(int year, int month) {
+		int[] dMon = daysMonth(year, month);
+		return operators.computeIfAbsent(new OperatorKey(dMon), key -> buildOperator(year, month));
+	}
+
+	private double[][] buildOperator(int year, int month) {
+		int nCol = getNMonth() + 1;
+		double[][] ts = asIrregArray(year, month, new double[getNMonth()]);
+		double[][] op = null;
+		for (int j = 0; j < nCol; j++) {
+			Arrays.fill(ts[1], 0.);
+			ts[1][j] = 1.;
+			double[] column = fit(ts);
+			if (op == null) {
+				op = new double[column.length][nCol];
+			}
+			for (int i = 0; i < column.length; i++) {
+				op[i][j] = column[i];
+			}
+		}
+		return op;
+	}
+
+	/**
+	 * Computes out = op * y
+	 */
+	static void applyOperator(double[][] op, double[] y, double[] out) {
+		for (int i = 0; i < op.length; i++) {
+			double[] row = op[i];
+			double sum = 0.;
+			for (int j = 0; j < row.length; j++) {
+				sum += row[j] * y[j];
+			}
+			out[i] = sum;
+		}
+	}
+
+	/**
+	 * True if the spline is linear in these values, that is none of them
+	 * reaches the lower bound or the range limits checked by the spline
+	 */
+	static boolean isLinear(double[] y) {
+		for (double v : y) {
+			if (!(v > YMIN && v < MAX_LINEAR_VALUE)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Fits the spline to the irregular series and evaluates it at each day
+	 */
+	private double[] fit(double[][] ts) {
+		double[] pq = { PQ_SCALAR, PQ_SCALAR, PQ_SCALAR, PQ_SCALAR, PQ_SCALAR, PQ_SCALAR }; // TODO
 		double y0 = ts[1][0];
 		double yn = ts[1][this.getNMonth()];
-		double ymin = -0.00000001; // TODO fix the minimum reinforcement
-		ConservativeSpline spline = new ConservativeSpline(ts[0], ts[1], pq, y0, yn, ymin);
+		ConservativeSpline spline = new ConservativeSpline(ts[0], ts[1], pq, y0, yn, YMIN);
 		double xNewMax = ts[0][this.getNMonth()];
 		int xNewLen = (int) xNewMax + 1;
 		double[] xnew = new double[xNewLen];
@@ -26,6 +26,23 @@ public class InputSizeInfo {
 		countSizes();
 	}
 	
+	/**
+	 * Creates the InputSizeInfo for a contiguous batch. Consistency is guaranteed
+	 * by the layout, so only the sizes are recorded.
+	 * @param batch
+	 */
+	public InputSizeInfo(SurrogateBatch batch) {
+		this.nVar = batch.getNFeatures();
+		this.batchLen = batch.getNBatch();
+		innerDim = new int[this.nVar];
+		for (int ivar = 0; ivar < nVar; ivar++) {
+			int thisSize = batch.getLagLength(ivar);
+			innerDim[ivar] = thisSize;
+			if(thisSize>maxSize) this.maxSize = thisSize;
+			if(thisSize<minSize) this.minSize = thisSize;
+		}
+	}
+	
 	private void countSizes(){
 		int newMax = -1;
 		int batchLen = inputs.get(0).length;
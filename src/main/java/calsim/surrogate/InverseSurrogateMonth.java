@@ -1,20 +1,47 @@
 package calsim.surrogate;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 class SurrogateLineSearcher extends BrentSolver{
    
 	SurrogateMonth surrogate;
+	Aggregator aggregator;
 	double target;
 	ArrayList<double[][]> inputs;
     int year;
     int month;
     int iLoc; 
 
-	public SurrogateLineSearcher(SurrogateMonth surrogate) {
+	// With several aggregators, the one being solved for and the values of all
+	// of them at each point evaluated so far
+	Aggregator[] aggregators;
+	int iAgg;
+	HashMap<List<Double>, double[]> evaluated;
+
+	public SurrogateLineSearcher(SurrogateMonth surrogate, Aggregator aggregator) {
 		super();
 		this.surrogate = surrogate;
+		this.aggregator = aggregator;
 	}    
+
+	/**
+	 * Searcher that solves for each of several aggregators in turn, see
+	 * {@link #setAggregatorIndex(int)}. Every evaluation computes all of them, so
+	 * points shared between the searches are evaluated once.
+	 */
+	public SurrogateLineSearcher(SurrogateMonth surrogate, Aggregator[] aggregators) {
+		super();
+		this.surrogate = surrogate;
+		this.aggregators = aggregators;
+		this.evaluated = new HashMap<List<Double>, double[]>();
+	}
+
+	public void setAggregatorIndex(int iAgg) {
+		this.iAgg = iAgg;
+	}
     
     
 	public void setTarget(double target) {
@@ -43,7 +70,21 @@ class SurrogateLineSearcher extends BrentSolver{
 	public double eval(double[] x) {
 		this.inputs.get(0)[0][0]=x[0];
 		this.inputs.get(1)[0][0]=x[1];
-        double[][] output = surrogate.annMonth(this.inputs, this.year, this.month);
+		if (aggregators != null) {
+			List<Double> point = Arrays.asList(x[0], x[1]);
+			double[] values = evaluated.get(point);
+			if (values == null) {
+				double[][][] output = surrogate.annMonth(this.inputs, this.year, this.month, aggregators);
+				values = new double[aggregators.length];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = output[i][0][iLoc];
+				}
+				evaluated.put(point, values);
+			}
+			return values[iAgg] - target;
+		}
+        double[][] output = aggregator == null ? surrogate.annMonth(this.inputs, this.year, this.month)
+        		: surrogate.annMonth(this.inputs, this.year, this.month, aggregator);
         return output[0][iLoc] - target;
 	}	
 }
@@ -54,13 +95,56 @@ class SurrogateLineSearcher extends BrentSolver{
 
 public class InverseSurrogateMonth {
 	public InverseSurrogateMonth(SurrogateMonth surrogate) {
+		this(surrogate, null);
+	}
+
+	/**
+	 * Inverts the surrogate reduced with the given aggregator rather than the
+	 * shared settings of its AggregateMonths
+	 */
+	public InverseSurrogateMonth(SurrogateMonth surrogate, Aggregator aggregator) {
 		super();
 		this.surrogate = surrogate;
+		this.aggregator = aggregator;
 	}
 	
 	SurrogateMonth surrogate;
+	Aggregator aggregator;
 	SurrogateLineSearcher searcher;
 
+	/**
+	 * Inverts the surrogate for each of several aggregators sharing one target,
+	 * such as NTH_SMALLEST for several day counts. Each result is the one
+	 * {@link #invert} would give with that aggregator alone, but every surrogate
+	 * evaluation serves all of them: points common to the searches, such as the
+	 * bounds, are evaluated once, and the ranks of several NTH_SMALLEST
+	 * aggregators are selected together.
+	 *
+	 * @return one result per aggregator, in the same order
+	 * @see #invert(double, ArrayList, int, double, double, int, int, int)
+	 */
+	public double[] invertAll(double target, ArrayList<double[][]> inputs, int searchIndex, Aggregator[] aggregators,
+			double loBound, double hiBound, int year, int month, int iLoc) {
+		int fixedIndex = (searchIndex + 1) % 2;
+		double[] searchDir = { 0., 0. };
+		searchDir[searchIndex] = 1.;
+		SurrogateLineSearcher all = new SurrogateLineSearcher(surrogate, aggregators);
+		all.setSearchDir(searchDir);
+		all.setTarget(target);
+		all.setInputs(inputs, year, month, iLoc);
+		all.setMin(loBound);
+		all.setMax(hiBound);
+		double[] results = new double[aggregators.length];
+		for (int i = 0; i < aggregators.length; i++) {
+			double[] start = { 0.0, 0.0 };
+			start[fixedIndex] = inputs.get(fixedIndex)[0][0];
+			all.setStart(start);
+			all.setAggregatorIndex(i);
+			results[i] = all.doSolve();
+		}
+		return results;
+	}
+
 	/**
 	 * Given target surrogate output and the value of one input (fixedIndex = 0 or 1), determine
 	 * the target. Search bounds must be given.
@@ -78,7 +162,7 @@ public class InverseSurrogateMonth {
         int fixedIndex = (searchIndex+1)%2;
         double[] searchDir = {0., 0.}; 
         searchDir[searchIndex] = 1.;        
-		searcher = new SurrogateLineSearcher(surrogate);
+		searcher = new SurrogateLineSearcher(surrogate, aggregator);
      	searcher.setSearchDir(searchDir);
      	searcher.setTarget(target);
      	searcher.setInputs(inputs, year, month, iLoc);
@@ -0,0 +1,214 @@
+package calsim.surrogate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small JSON reader for the layer configuration that Keras stores in
+ * keras_metadata.pb. Objects become {@code Map<String,Object>} (in document
+ * order), arrays become {@code List<Object>}, numbers become {@code Double} and
+ * the literals become {@code Boolean} or null. The non-standard NaN and Infinity
+ * literals written by Python are accepted.
+ */
+final class JsonParser {
+
+	private final String text;
+	private int pos;
+
+	private JsonParser(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Parses a JSON document
+	 * @throws IllegalArgumentException if the text is not valid JSON
+	 */
+	static Object parse(String text) {
+		JsonParser p = new JsonParser(text);
+		Object out = p.value();
+		p.skipWhitespace();
+		if (p.pos != text.length()) {
+			throw p.error("Trailing characters");
+		}
+		return out;
+	}
+
+	private Object value() {
+		skipWhitespace();
+		if (pos >= text.length()) {
+			throw error("Unexpected end of input");
+		}
+		char c = text.charAt(pos);
+		switch (c) {
+		case '{':
+			return object();
+		case '[':
+			return array();
+		case '"':
+			return string();
+		case 't':
+			expect("true");
+			return Boolean.TRUE;
+		case 'f':
+			expect("false");
+			return Boolean.FALSE;
+		case 'n':
+			expect("null");
+			return null;
+		case 'N':
+			expect("NaN");
+			return Double.NaN;
+		case 'I':
+			expect("Infinity");
+			return Double.POSITIVE_INFINITY;
+		default:
+			return number();
+		}
+	}
+
+	private Map<String, Object> object() {
+		Map<String, Object> out = new LinkedHashMap<String, Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return out;
+		}
+		while (true) {
+			skipWhitespace();
+			if (peek() != '"') {
+				throw error("Expected object key");
+			}
+			String key = string();
+			skipWhitespace();
+			if (peek() != ':') {
+				throw error("Expected ':'");
+			}
+			pos++;
+			out.put(key, value());
+			skipWhitespace();
+			char c = peek();
+			pos++;
+			if (c == '}') {
+				return out;
+			}
+			if (c != ',') {
+				throw error("Expected ',' or '}'");
+			}
+		}
+	}
+
+	private List<Object> array() {
+		List<Object> out = new ArrayList<Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return out;
+		}
+		while (true) {
+			out.add(value());
+			skipWhitespace();
+			char c = peek();
+			pos++;
+			if (c == ']') {
+				return out;
+			}
+			if (c != ',') {
+				throw error("Expected ',' or ']'");
+			}
+		}
+	}
+
+	private String string() {
+		StringBuilder sb = new StringBuilder();
+		pos++;
+		while (true) {
+			char c = peek();
+			pos++;
+			if (c == '"') {
+				return sb.toString();
+			}
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			char e = peek();
+			pos++;
+			switch (e) {
+			case 'n':
+				sb.append('\n');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 'b':
+				sb.append('\b');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'u':
+				if (pos + 4 > text.length()) {
+					throw error("Bad unicode escape");
+				}
+				sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+				pos += 4;
+				break;
+			default:
+				sb.append(e);
+			}
+		}
+	}
+
+	private Double number() {
+		int start = pos;
+		if (peek() == '-') {
+			pos++;
+			if (text.startsWith("Infinity", pos)) {
+				pos += "Infinity".length();
+				return Double.NEGATIVE_INFINITY;
+			}
+		}
+		while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+			pos++;
+		}
+		if (start == pos) {
+			throw error("Unexpected character");
+		}
+		try {
+			return Double.valueOf(text.substring(start, pos));
+		} catch (NumberFormatException e) {
+			throw error("Bad number");
+		}
+	}
+
+	private void expect(String literal) {
+		if (!text.startsWith(literal, pos)) {
+			throw error("Expected " + literal);
+		}
+		pos += literal.length();
+	}
+
+	private char peek() {
+		if (pos >= text.length()) {
+			throw error("Unexpected end of input");
+		}
+		return text.charAt(pos);
+	}
+
+	private void skipWhitespace() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+			pos++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + pos + " of JSON text");
+	}
+}
@@ -0,0 +1,703 @@
+package calsim.surrogate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One layer of a Keras functional model evaluated in plain Java by
+ * {@link KerasSurrogate}. Tensors are passed as flat float arrays holding the
+ * whole batch in row-major order; the per-sample shape (excluding the batch
+ * dimension) is fixed when the model is loaded.
+ *
+ * <p>Only the inference behaviour of the layers used by our surrogates is
+ * implemented. {@link #create(Map, String, CheckpointReader, int)} throws
+ * IllegalArgumentException for anything else so that callers can fall back on
+ * {@link TensorWrapper}.</p>
+ */
+abstract class KerasLayer {
+
+	final String name;
+	final String[] inbound;
+	int[] shape;
+
+	KerasLayer(String name, String[] inbound) {
+		this.name = name;
+		this.inbound = inbound;
+	}
+
+	/**
+	 * Computes and records the per-sample output shape given the shapes of the
+	 * inbound tensors, validating them against the weights
+	 */
+	abstract int[] outputShape(int[][] inShapes);
+
+	/**
+	 * Evaluates the layer
+	 *
+	 * @param inputs one flat array per inbound tensor, each nBatch x size(shape)
+	 * @param nBatch batch size
+	 * @return flat output of nBatch x size(shape)
+	 */
+	abstract float[] apply(float[][] inputs, int nBatch);
+
+	static int size(int[] shape) {
+		int n = 1;
+		for (int d : shape) {
+			n *= d;
+		}
+		return n;
+	}
+
+	/**
+	 * Element-wise activations named in the layer config
+	 */
+	enum Activation {
+		LINEAR, RELU, SIGMOID, TANH, ELU, SOFTPLUS;
+
+		static Activation of(Object config) {
+			if (!(config instanceof String)) {
+				throw new IllegalArgumentException("Unsupported activation " + config);
+			}
+			String name = (String) config;
+			for (Activation a : values()) {
+				if (a.name().equalsIgnoreCase(name)) {
+					return a;
+				}
+			}
+			throw new IllegalArgumentException("Unsupported activation " + name);
+		}
+
+		float apply(float x) {
+			switch (this) {
+			case RELU:
+				return x > 0f ? x : 0f;
+			case SIGMOID:
+				return (float) (1.0 / (1.0 + Math.exp(-x)));
+			case TANH:
+				return (float) Math.tanh(x);
+			case ELU:
+				return x > 0f ? x : (float) Math.expm1(x);
+			case SOFTPLUS:
+				return (float) Math.log1p(Math.exp(x));
+			default:
+				return x;
+			}
+		}
+
+		void apply(float[] x, int from, int to) {
+			if (this == LINEAR) {
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				x[i] = apply(x[i]);
+			}
+		}
+	}
+
+	/**
+	 * Creates the layer described by one entry of the functional model's
+	 * {@code config.layers}
+	 *
+	 * @param layer      layer description with class_name, config and
+	 *                   inbound_nodes
+	 * @param objectPath path of the layer in the checkpoint object graph, e.g.
+	 *                   layer-15
+	 * @param ckpt       checkpoint holding the weights
+	 * @param streamSteps zero for ordinary evaluation. When positive the layer is
+	 *                   built for streaming evaluation in which the time axis is
+	 *                   extended and the final recurrent layer emits its last
+	 *                   streamSteps steps rather than only the last one.
+	 */
+	@SuppressWarnings("unchecked")
+	static KerasLayer create(Map<String, Object> layer, String objectPath, CheckpointReader ckpt,
+			int streamSteps) {
+		String className = (String) layer.get("class_name");
+		Map<String, Object> config = (Map<String, Object>) layer.get("config");
+		String name = (String) config.get("name");
+		String[] inbound = inboundNames(layer);
+		switch (className) {
+		case "Rescaling":
+			return new Rescaling(name, inbound, number(config, "scale"), number(config, "offset"));
+		case "Normalization":
+			if (Boolean.TRUE.equals(config.get("invert"))) {
+				throw new IllegalArgumentException("Inverted Normalization layer " + name + " is not supported");
+			}
+			return new Normalization(name, inbound, ckpt.getVariable(objectPath + "/mean"),
+					ckpt.getVariable(objectPath + "/variance"));
+		case "Concatenate":
+			return new Concatenate(name, inbound, (int) number(config, "axis"));
+		case "Dense":
+			return new Dense(name, inbound, ckpt.getVariable(objectPath + "/kernel"),
+					Boolean.FALSE.equals(config.get("use_bias")) ? null : ckpt.getVariable(objectPath + "/bias"),
+					(int) number(config, "units"), Activation.of(config.get("activation")));
+		case "BatchNormalization":
+			return new BatchNormalization(name, inbound, config, objectPath, ckpt);
+		case "Activation":
+			return new ActivationLayer(name, inbound, Activation.of(config.get("activation")));
+		case "Reshape":
+			return new Reshape(name, inbound, ints(config.get("target_shape")), streamSteps > 0);
+		case "Subtract":
+			return new Subtract(name, inbound);
+		case "LSTM":
+			return new LSTM(name, inbound, config, objectPath, ckpt, streamSteps);
+		case "ModifiedExponentialDecayLayer":
+			return new ModifiedExponentialDecay(name, inbound, number(config, "a"), number(config, "b"));
+		case "UnscaleLayer":
+			return new Unscale(name, inbound, ckpt.hasVariable(objectPath + "/output_scales")
+					? ckpt.getVariable(objectPath + "/output_scales")
+					: floats(config.get("output_scales")));
+		default:
+			throw new IllegalArgumentException("Layer " + name + " of class " + className
+					+ " is not supported by the Java interpreter");
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static String[] inboundNames(Map<String, Object> layer) {
+		List<Object> nodes = (List<Object>) layer.get("inbound_nodes");
+		if (nodes == null || nodes.isEmpty()) {
+			return new String[0];
+		}
+		if (nodes.size() > 1) {
+			throw new IllegalArgumentException("Shared layer " + layer.get("name") + " is not supported");
+		}
+		List<Object> node = (List<Object>) nodes.get(0);
+		String[] out = new String[node.size()];
+		for (int i = 0; i < out.length; i++) {
+			List<Object> ref = (List<Object>) node.get(i);
+			out[i] = (String) ref.get(0);
+		}
+		return out;
+	}
+
+	static double number(Map<String, Object> config, String key) {
+		Object v = config.get(key);
+		if (!(v instanceof Double)) {
+			throw new IllegalArgumentException("Layer " + config.get("name") + " has non-numeric " + key + ": " + v);
+		}
+		return (Double) v;
+	}
+
+	/**
+	 * Reads a list or serialized python tuple of integers
+	 */
+	@SuppressWarnings("unchecked")
+	static int[] ints(Object value) {
+		if (value instanceof Map) {
+			value = ((Map<String, Object>) value).get("items");
+		}
+		List<Object> items = (List<Object>) value;
+		int[] out = new int[items.size()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = ((Double) items.get(i)).intValue();
+		}
+		return out;
+	}
+
+	@SuppressWarnings("unchecked")
+	static float[] floats(Object value) {
+		if (!(value instanceof List)) {
+			throw new IllegalArgumentException("Expected a list of numbers but found " + value);
+		}
+		List<Object> items = (List<Object>) value;
+		float[] out = new float[items.size()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = ((Double) items.get(i)).floatValue();
+		}
+		return out;
+	}
+
+	static int[] single(int[][] inShapes, String name) {
+		if (inShapes.length != 1) {
+			throw new IllegalArgumentException("Layer " + name + " expects one input but has " + inShapes.length);
+		}
+		return inShapes[0];
+	}
+
+	static final class Rescaling extends KerasLayer {
+		private final float scale;
+		private final float offset;
+
+		Rescaling(String name, String[] inbound, double scale, double offset) {
+			super(name, inbound);
+			this.scale = (float) scale;
+			this.offset = (float) offset;
+		}
+
+		@Override
+		int[] outputShape(int[][] inShapes) {
+			return single(inShapes, name);
+		}
+
+		@Override
+		float[] apply(float[][] inputs, int nBatch) {
+			float[] x = inputs[0];
+			float[] out = new float[x.length];
+			for (int i = 0; i < x.length; i++) {
+				out[i] = x[i] * scale + offset;
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Keras preprocessing Normalization, (x - mean) / max(sqrt(variance), 1e-7),
+	 * with statistics that are either scalar or per element of the last axis
+	 */
+	static final class Normalization extends KerasLayer {
+		private static final double EPSILON = 1e-7;
+		private final float[] mean;
+		private final float[] denom;
+
+		Normalization(String name, String[] inbound, float[] mean, float[] variance) {
+			super(name, inbound);
+			this.mean = mean;
+			this.denom = new float[variance.length];
+			for (int i = 0; i < variance.length; i++) {
+				denom[i] = (float) Math.max(Math.sqrt(variance[i]), EPSILON);
+			}
+		}
+
+		@Override
+		int[] outputShape(int[][] inShapes) {
+			int[] in = single(inShapes, name);
+			if (mean.length != 1 && (in.length == 0 || in[in.length - 1] != mean.length)) {
+				throw new IllegalArgumentException("Normalization " + name + " statistics of length " + mean.length
+						+ " do not match input shape " + Arrays.toString(in));
+			}
+			return in;
+		}
+
+		@Override
+		float[] apply(float[][] inputs, int nBatch) {
+			float[] x = inputs[0];
+			float[] out = new float[x.length];
+			int n = mean.length;
+			for (int i = 0; i < x.length; i++) {
+				int k = n == 1 ? 0 : i % n;
+				out[i] = (x[i] - mean[k]) / denom[k];
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Concatenation along one axis. The axis counts the batch dimension, as in
+	 * Keras, so -1 and rank are both the last axis.
+	 */
+	static final class Concatenate extends KerasLayer {
+		private final int axis;
+		private int outer;
+		private int[] chunk;
+
+		Concatenate(String name, String[] inbound, int axis) {
+			super(name, inbound);
+			this.axis = axis;
+		}
+
+		@Override
+		int[] outputShape(int[][] inShapes) {
+			int rank = inShapes[0].length;
+			int a = axis < 0 ? rank + axis : axis - 1; // axis within the per-sample shape
+			if (a < 0 || a >= rank) {
+				throw new IllegalArgumentException("Concatenate " + name + " has invalid axis " + axis);
+			}
+			int[] out = inShapes[0].clone();
+			out[a] = 0;
+			chunk = new int[inShapes.length];
+			for (int k = 0; k < inShapes.length; k++) {
+				int[] s = inShapes[k];
+				for (int d = 0; d < rank; d++) {
+					if (d != a && s[d] != inShapes[0][d]) {
+						throw new IllegalArgumentException("Concatenate " + name + " has mismatched input shapes");
+					}
+				}
+				out[a] += s[a];
+				chunk[k] = size(Arrays.copyOfRange(s, a, rank));
+			}
+			outer = size(Arrays.copyOfRange(out, 0, a));
+			return out;
+		}
+
+		@Override
+		float[] apply(float[][] inputs, int nBatch) {
+			int width = 0;
+			for (int c : chunk) {
+				width += c;
+			}
+			int rows = nBatch * outer;
+			float[] out = new float[rows * width];
+			int pos = 0;
+			for (int r = 0; r < rows; r++) {
+				for (int k = 0; k < inputs.length; k++) {
+					System.arraycopy(inputs[k], r * chunk[k], out, pos, chunk[k]);
+					pos += chunk[k];
+				}
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Fully connected layer applied to the last axis
+	 */
+	static final class Dense extends KerasLayer {
+		private final float[] kernel; // [nIn][units]
+		private final float[] bias;
+		private final int units;
+		private final Activation activation;
+
+		Dense(String name, String[] inbound, float[] kernel, float[] bias, int units, Activation activation) {
+			super(name, inbound);
+			this.kernel = kernel;
+			this.bias = bias;
+			this.units = units;
+			this.activation = activation;
+		}
+
+		@Override
+		int[] outputShape(int[][] inShapes) {
+			int[] in = single(inShapes, name);
+			int nIn = in[in.length - 1];
+			if (kernel.length != nIn * units) {
+				throw new IllegalArgumentException("Dense " + name + " kernel does not match input width " + nIn);
+			}
+			int[] out = in.clone();
+			out[out.length - 1] = units;
+			return out;
+		}
+
+		@Override
+		float[] apply(float[][] inputs, int nBatch) {
+			float[] x = inputs[0];
+			int nIn = kernel.length / units;
+			int rows = x.length / nIn;
+			float[] out = new float[rows * units];
+			for (int r = 0; r < rows; r++) {
+				int o = r * units;
+				if (bias != null) {
+					System.arraycopy(bias, 0, out, o, units);
+				}
+				int xo = r * nIn;
+				for (int i = 0; i < nIn; i++) {
+					float xi = x[xo + i];
+					int ko = i * units;
+					for (int u = 0; u < units; u++) {
+						out[o + u] += xi * kernel[ko + u];
+					}
+				}
+				activation.apply(out, o, o + units);
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Batch normalization in inference mode, folded into a per-channel scale and
+	 * shift on the last axis
+	 */
+	static final class BatchNormalization extends KerasLayer {
+		private final float[] scale;
+		private final float[] shift;
+
+		@SuppressWarnings("unchecked")
+		BatchNormalization(String name, String[] inbound, Map<String, Object> config, String objectPath,
+				CheckpointReader ckpt) {
+			super(name, inbound);
+			Object axis = config.get("axis");
+			if (axis instanceof List) {
+				List<Object> axes = (List<Object>) axis;
+				axis = axes.size() == 1 ? axes.get(0) : null;
+			}
+			if (!(axis instanceof Double)) {
+				throw new IllegalArgumentException("BatchNormalization " + name + " axis " + axis + " not supported");
+			}
+			double eps = number(config, "epsilon");
+			float[] mean = ckpt.getVariable(objectPath + "/moving_mean");
+			float[] var = ckpt.getVariable(objectPath + "/moving_variance");
+			float[] gamma = Boolean.FALSE.equals(config.get("scale")) ? null : ckpt.getVariable(objectPath + "/gamma");
+			float[] beta = Boolean.FALSE.equals(config.get("center")) ? null : ckpt.getVariable(objectPath + "/beta");
+			scale = new float[mean.length];
+			shift = new float[mean.length];
+			for (int i = 0; i < mean.length; i++) {
+				float inv = (float) (1.0 / Math.sqrt(var[i] + eps));
+				if (gamma != null) {
+					inv *= gamma[i];
+				}
+				scale[i] = inv;
+				shift[i] = (beta == null ? 0f : beta[i]) - mean[i] * inv;
+			}
+		}
+
+		@Override
+		int[] outputShape(int[][] inShapes) {
+			int[] in = single(inShapes, name);
+			if (in[in.length - 1] != scale.length) {
+				throw new IllegalArgumentException("BatchNormalization " + name + " does not match its input");
+			}
+			return in;
+		}
+
+		@Override
+		float[] apply(float[][] inputs, int nBatch) {
+			float[] x = inputs[0];
+			float[] out = new float[x.length];
+			int n = scale.length;
+			for (int i = 0; i < x.length; i++) {
+				int k = i % n;
+				out[i] = x[i] * scale[k] + shift[k];
+			}
+			return out;
+		}
+	}
+
+	static final class ActivationLayer extends KerasLayer {
+		private final Activation activation;
+
+		ActivationLayer(String name, String[] inbound, Activation activation) {
+			super(name, inbound);
+			this.activation = activation;
+		}
+
+		@Override
+		int[] outputShape(int[][] inShapes) {
+			return single(inShapes, name);
+		}
+
+		@Override
+		float[] apply(float[][] inputs, int nBatch) {
+			float[] out = inputs[0].clone();
+			activation.apply(out, 0, out.length);
+			return out;
+		}
+	}
+
+	/**
+	 * Reshape of the per-sample dimensions. In streaming mode the leading (time)
+	 * dimension follows the input, so (T) may become (T, 1) for any T.
+	 */
+	static final class Reshape extends KerasLayer {
+		private final int[] target;
+		private final boolean streaming;
+
+		Reshape(String name, String[] inbound, int[] target, boolean streaming) {
+			super(name, inbound);
+			this.target = target;
+			this.streaming = streaming;
+		}
+
+		@Override
+		int[] outputShape(int[][] inShapes) {
+			int[] in = single(inShapes, name);
+			int[] out = target.clone();
+			if (streaming) {
+				int rest = size(Arrays.copyOfRange(target, 1, target.length));
+				out[0] = in.length == 0 ? 1 : in[0];
+				if (size(in) != out[0] * rest) {
+					throw new IllegalArgumentException("Reshape " + name + " does not preserve the time axis");
+				}
+			} else if (size(in) != size(out)) {
+				throw new IllegalArgumentException("Reshape " + name + " target " + Arrays.toString(target)
+						+ " does not match input " + Arrays.toString(in));
+			}
+			return out;
+		}
+
+		@Override
+		float[] apply(float[][] inputs, int nBatch) {
+			return inputs[0];
+		}
+	}
+
+	static final class Subtract extends KerasLayer {
+
+		Subtract(String name, String[] inbound) {
+			super(name, inbound);
+		}
+
+		@Override
+		int[] outputShape(int[][] inShapes) {
+			if (inShapes.length != 2 || !Arrays.equals(inShapes[0], inShapes[1])) {
+				throw new IllegalArgumentException("Subtract " + name + " needs two inputs of the same shape");
+			}
+			return inShapes[0];
+		}
+
+		@Override
+		float[] apply(float[][] inputs, int nBatch) {
+			float[] a = inputs[0];
+			float[] b = inputs[1];
+			float[] out = new float[a.length];
+			for (int i = 0; i < a.length; i++) {
+				out[i] = a[i] - b[i];
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Custom flow transform used by the SCHISM surrogates,
+	 * (exp(-a x) - exp(-a b)) / (1 - exp(-a b)), which maps zero flow to one and
+	 * flow b to zero
+	 */
+	static final class ModifiedExponentialDecay extends KerasLayer {
+		private final float a;
+		private final float expb;
+		private final float denom;
+
+		ModifiedExponentialDecay(String name, String[] inbound, double a, double b) {
+			super(name, inbound);
+			this.a = (float) a;
+			this.expb = (float) Math.exp(-this.a * (float) b);
+			this.denom = 1f - expb;
+		}
+
+		@Override
+		int[] outputShape(int[][] inShapes) {
+			return single(inShapes, name);
+		}
+
+		@Override
+		float[] apply(float[][] inputs, int nBatch) {
+			float[] x = inputs[0];
+			float[] out = new float[x.length];
+			for (int i = 0; i < x.length; i++) {
+				out[i] = ((float) Math.exp(-a * x[i]) - expb) / denom;
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Custom layer that multiplies each output by a fixed scale
+	 */
+	static final class Unscale extends KerasLayer {
+		private final float[] scales;
+
+		Unscale(String name, String[] inbound, float[] scales) {
+			super(name, inbound);
+			this.scales = scales;
+		}
+
+		@Override
+		int[] outputShape(int[][] inShapes) {
+			int[] in = single(inShapes, name);
+			if (in[in.length - 1] != scales.length) {
+				throw new IllegalArgumentException("UnscaleLayer " + name + " does not match its input");
+			}
+			return in;
+		}
+
+		@Override
+		float[] apply(float[][] inputs, int nBatch) {
+			float[] x = inputs[0];
+			float[] out = new float[x.length];
+			int n = scales.length;
+			for (int i = 0; i < x.length; i++) {
+				out[i] = x[i] * scales[i % n];
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Keras LSTM on input of shape (time, features), with gates in Keras order
+	 * (input, forget, cell, output) and a zero initial state. A layer that returns
+	 * only its final output instead returns the last streamSteps outputs when
+	 * built for streaming.
+	 */
+	static final class LSTM extends KerasLayer {
+		private final int units;
+		private final float[] kernel;    // [nIn][4 units]
+		private final float[] recurrent; // [units][4 units]
+		private final float[] bias;      // [4 units]
+		private final Activation activation;
+		private final Activation recurrentActivation;
+		private final boolean returnSequences;
+		private final int emit;
+		private int nIn;
+		private int nTime;
+
+		LSTM(String name, String[] inbound, Map<String, Object> config, String objectPath, CheckpointReader ckpt,
+				int streamSteps) {
+			super(name, inbound);
+			if (Boolean.TRUE.equals(config.get("go_backwards")) || Boolean.TRUE.equals(config.get("stateful"))
+					|| Boolean.TRUE.equals(config.get("return_state"))) {
+				throw new IllegalArgumentException("LSTM " + name + " options are not supported");
+			}
+			this.units = (int) number(config, "units");
+			this.activation = Activation.of(config.get("activation"));
+			this.recurrentActivation = Activation.of(config.get("recurrent_activation"));
+			this.returnSequences = Boolean.TRUE.equals(config.get("return_sequences"));
+			this.kernel = ckpt.getVariable(objectPath + "/cell/kernel");
+			this.recurrent = ckpt.getVariable(objectPath + "/cell/recurrent_kernel");
+			this.bias = Boolean.FALSE.equals(config.get("use_bias")) ? new float[4 * units]
+					: ckpt.getVariable(objectPath + "/cell/bias");
+			this.emit = returnSequences ? 0 : Math.max(streamSteps, 1);
+		}
+
+		@Override
+		int[] outputShape(int[][] inShapes) {
+			int[] in = single(inShapes, name);
+			if (in.length != 2 || kernel.length != in[1] * 4 * units || recurrent.length != units * 4 * units) {
+				throw new IllegalArgumentException("LSTM " + name + " weights do not match input " + Arrays.toString(in));
+			}
+			nTime = in[0];
+			nIn = in[1];
+			if (emit > nTime) {
+				throw new IllegalArgumentException("LSTM " + name + " cannot emit more steps than it runs");
+			}
+			if (returnSequences) {
+				return new int[] { nTime, units };
+			}
+			return emit == 1 ? new int[] { units } : new int[] { emit, units };
+		}
+
+		@Override
+		float[] apply(float[][] inputs, int nBatch) {
+			float[] x = inputs[0];
+			int nGate = 4 * units;
+			int nOutStep = returnSequences ? nTime : emit;
+			float[] out = new float[nBatch * nOutStep * units];
+			float[] z = new float[nGate];
+			float[] h = new float[units];
+			float[] c = new float[units];
+			for (int b = 0; b < nBatch; b++) {
+				Arrays.fill(h, 0f);
+				Arrays.fill(c, 0f);
+				for (int t = 0; t < nTime; t++) {
+					System.arraycopy(bias, 0, z, 0, nGate);
+					int xo = (b * nTime + t) * nIn;
+					for (int i = 0; i < nIn; i++) {
+						float xi = x[xo + i];
+						int ko = i * nGate;
+						for (int j = 0; j < nGate; j++) {
+							z[j] += xi * kernel[ko + j];
+						}
+					}
+					for (int i = 0; i < units; i++) {
+						float hi = h[i];
+						int ko = i * nGate;
+						for (int j = 0; j < nGate; j++) {
+							z[j] += hi * recurrent[ko + j];
+						}
+					}
+					for (int u = 0; u < units; u++) {
+						float ig = recurrentActivation.apply(z[u]);
+						float fg = recurrentActivation.apply(z[units + u]);
+						float cc = activation.apply(z[2 * units + u]);
+						float og = recurrentActivation.apply(z[3 * units + u]);
+						c[u] = fg * c[u] + ig * cc;
+						h[u] = og * activation.apply(c[u]);
+					}
+					int step = t - (nTime - nOutStep);
+					if (step >= 0) {
+						System.arraycopy(h, 0, out, (b * nOutStep + step) * units, units);
+					}
+				}
+			}
+			return out;
+		}
+	}
+}
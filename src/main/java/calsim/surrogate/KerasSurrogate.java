@@ -0,0 +1,508 @@
+package calsim.surrogate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pure Java evaluation of a Keras saved model, intended as a drop-in
+ * replacement for {@link TensorWrapper} on small models where the cost of the
+ * TensorFlow session (seconds to load, a JNI round trip per call) dominates.
+ * The layer graph is read from keras_metadata.pb and the weights from the
+ * checkpoint in the variables directory; saved_model.pb is not used.
+ *
+ * <p>The constructor takes the same arguments as TensorWrapper. Inputs are
+ * matched to the model's input layers by their short names (serving_default_sac:0
+ * feeds the input layer sac) and the output is chosen by its index in the
+ * signature, so "StatefulPartitionedCall:0" is the first model output. A model
+ * using a layer this class does not implement is rejected with an
+ * IllegalArgumentException when it is loaded.</p>
+ *
+ * <p>Feed forward models (Dense, BatchNormalization, Normalization) and
+ * recurrent models built from LSTM layers with the custom decay and unscaling
+ * layers of the GRU surrogates are supported. Results agree with TensorFlow to
+ * single precision round-off and, like TensorWrapper, are floored at 0.1 unless
+ * another {@link OutputPostProcessor} is set.
+ * Instances hold no mutable state during evaluation and may be shared between
+ * threads.</p>
+ *
+ * <p>Recurrent models evaluated on consecutive days can optionally carry the
+ * recurrent state from one day to the next with
+ * {@link #estimateStreaming(SurrogateBatch, int)} instead of re-running the full
+ * window for each day. This is an approximation; {@link SurrogateMonth} only
+ * uses it once enabled with {@link #setStreaming(boolean)}.</p>
+ */
+public class KerasSurrogate implements Surrogate {
+
+	private static final String OUTPUT_PREFIX = "StatefulPartitionedCall:";
+
+	String fpath;
+	String[] tensorNames;
+	String[] tensorNamesInt;
+	String outName;
+	int nFeatures;
+	DailyToSurrogate dayToANN;
+
+	private final Map<String, Object> config;
+	private final CheckpointReader ckpt;
+	private final Plan plan;
+	// Streaming plans by number of steps, built on first use
+	private final ConcurrentHashMap<Integer, Plan> streamPlans = new ConcurrentHashMap<Integer, Plan>();
+	private final boolean streamable;
+	private volatile boolean streaming = false;
+	private volatile OutputPostProcessor postProcessor = OutputPostProcessor.DEFAULT;
+
+	/**
+	 * Layers needed for the output in topological order. Tensors are numbered by
+	 * slot: slots 0..nFeatures-1 hold the inputs, then one per layer.
+	 */
+	private static final class Plan {
+		final List<KerasLayer> layers = new ArrayList<KerasLayer>();
+		int[][] layerInputs;
+		int outputSlot;
+		int[] inputSize;
+		int[] outputShape;
+	}
+
+	/**
+	 * Loads a Keras saved model for evaluation in Java
+	 *
+	 * @param fpath          path containing the saved model.
+	 * @param tensorNames    names used to access input names for float values
+	 *                       inputs
+	 * @param tensorNamesInt names used to access input names for integer valued
+	 *                       inputs; must be empty
+	 * @param outName        name of the output to be queried
+	 * @throws IllegalArgumentException if the model cannot be evaluated in Java
+	 * @throws UncheckedIOException     if the model files cannot be read
+	 */
+	public KerasSurrogate(String fpath, String[] tensorNames, String[] tensorNamesInt, String outName,
+			DailyToSurrogate dayToSurrogate) {
+		this.fpath = fpath;
+		this.tensorNames = tensorNames;
+		this.tensorNamesInt = tensorNamesInt;
+		this.nFeatures = tensorNames.length;
+		this.outName = outName;
+		this.dayToANN = dayToSurrogate;
+		if (tensorNamesInt != null && tensorNamesInt.length > 0) {
+			throw new IllegalArgumentException("Integer inputs are not supported by KerasSurrogate");
+		}
+		try {
+			this.config = loadModelConfig(fpath);
+			this.ckpt = new CheckpointReader(fpath);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not read Keras model at " + fpath, e);
+		}
+		this.plan = buildPlan(0);
+		if (plan.outputShape.length != 1) {
+			throw new IllegalArgumentException("Output " + outName + " of model " + fpath + " is not one dimensional");
+		}
+		this.streamable = canStream();
+	}
+
+	/**
+	 * Returns the functional model config (the "config" member of the root object
+	 * in keras_metadata.pb) with its layers, input_layers and output_layers
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> loadModelConfig(String fpath) throws IOException {
+		byte[] metadata = Files.readAllBytes(new File(fpath, "keras_metadata.pb").toPath());
+		ProtoReader saved = new ProtoReader(metadata);
+		while (saved.next()) {
+			if (saved.field() != 1) {
+				saved.skip();
+				continue;
+			}
+			ProtoReader node = saved.message();
+			String path = null;
+			String json = null;
+			while (node.next()) {
+				if (node.field() == 3) {
+					path = node.string();
+				} else if (node.field() == 5) {
+					json = node.string();
+				} else {
+					node.skip();
+				}
+			}
+			if ("root".equals(path)) {
+				Map<String, Object> root = (Map<String, Object>) JsonParser.parse(json);
+				Object config = root.get("config");
+				if (!(config instanceof Map) || !((Map<String, Object>) config).containsKey("layers")) {
+					throw new IllegalArgumentException("Model at " + fpath + " is not a Keras functional model");
+				}
+				return (Map<String, Object>) config;
+			}
+		}
+		throw new IOException("No root object in keras_metadata.pb at " + fpath);
+	}
+
+	/**
+	 * Builds the evaluation plan for the requested output
+	 *
+	 * @param streamSteps zero for ordinary evaluation, otherwise the number of
+	 *                    consecutive steps to be emitted in streaming mode
+	 */
+	@SuppressWarnings("unchecked")
+	private Plan buildPlan(int streamSteps) {
+		Plan p = new Plan();
+		List<Object> layers = (List<Object>) config.get("layers");
+		Map<String, Integer> layerIndex = new HashMap<String, Integer>();
+		for (int i = 0; i < layers.size(); i++) {
+			Map<String, Object> layer = (Map<String, Object>) layers.get(i);
+			layerIndex.put(layerName(layer), i);
+		}
+
+		// Work back from the requested output to find the layers it depends on
+		String output = outputLayer(config);
+		Set<String> needed = new HashSet<String>();
+		List<String> stack = new ArrayList<String>();
+		stack.add(output);
+		while (!stack.isEmpty()) {
+			String name = stack.remove(stack.size() - 1);
+			if (!needed.add(name)) {
+				continue;
+			}
+			Integer idx = layerIndex.get(name);
+			if (idx == null) {
+				throw new IllegalArgumentException("Layer " + name + " not found in model " + fpath);
+			}
+			for (String in : KerasLayer.inboundNames((Map<String, Object>) layers.get(idx))) {
+				stack.add(in);
+			}
+		}
+
+		Map<String, Integer> slotOf = new HashMap<String, Integer>();
+		List<int[]> shapes = new ArrayList<int[]>();
+		p.inputSize = new int[nFeatures];
+		for (int i = 0; i < nFeatures; i++) {
+			String inputName = DebugUtils.getShortName(tensorNames[i]);
+			Integer idx = layerIndex.get(inputName);
+			if (idx == null) {
+				throw new IllegalArgumentException("Input " + tensorNames[i] + " not found in model " + fpath);
+			}
+			int[] shape = inputShape((Map<String, Object>) layers.get(idx));
+			if (streamSteps > 0) {
+				if (shape.length == 0) {
+					throw new IllegalArgumentException("Input " + inputName + " has no time axis");
+				}
+				shape[0] += streamSteps - 1; // the history extends back one window from the first step
+			}
+			slotOf.put(inputName, i);
+			shapes.add(shape);
+			p.inputSize[i] = KerasLayer.size(shape);
+		}
+
+		List<int[]> inputs = new ArrayList<int[]>();
+		// Config layers are listed in topological order, which is also the order of the
+		// layer-N references in the checkpoint object graph
+		for (int i = 0; i < layers.size(); i++) {
+			Map<String, Object> layer = (Map<String, Object>) layers.get(i);
+			String name = layerName(layer);
+			if (!needed.contains(name) || "InputLayer".equals(layer.get("class_name"))) {
+				if (needed.contains(name) && !slotOf.containsKey(name)) {
+					throw new IllegalArgumentException("Model input " + name + " is not among the tensor names");
+				}
+				continue;
+			}
+			KerasLayer op = KerasLayer.create(layer, "layer-" + i, ckpt, streamSteps);
+			int[] in = new int[op.inbound.length];
+			int[][] inShapes = new int[in.length][];
+			for (int k = 0; k < in.length; k++) {
+				Integer slot = slotOf.get(op.inbound[k]);
+				if (slot == null) {
+					throw new IllegalArgumentException("Layer " + name + " precedes its input " + op.inbound[k]);
+				}
+				in[k] = slot;
+				inShapes[k] = shapes.get(slot);
+			}
+			op.shape = op.outputShape(inShapes);
+			slotOf.put(name, shapes.size());
+			shapes.add(op.shape);
+			p.layers.add(op);
+			inputs.add(in);
+		}
+		p.layerInputs = inputs.toArray(new int[inputs.size()][]);
+		p.outputSlot = slotOf.get(output);
+		p.outputShape = shapes.get(p.outputSlot);
+		return p;
+	}
+
+	/**
+	 * A model can be streamed if every layer ahead of the recurrence acts on each
+	 * time step separately and the recurrence ends in a single output per step,
+	 * which shows up as a two step plan with output shape (2, nOut)
+	 */
+	private boolean canStream() {
+		try {
+			Plan p = buildPlan(2);
+			return p.outputShape.length == 2 && p.outputShape[0] == 2 && p.outputShape[1] == plan.outputShape[0];
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static String layerName(Map<String, Object> layer) {
+		Object name = layer.get("name");
+		if (name == null) {
+			name = ((Map<String, Object>) layer.get("config")).get("name");
+		}
+		return (String) name;
+	}
+
+	/**
+	 * Maps the output name to an output layer. Either a layer name or the
+	 * signature name StatefulPartitionedCall:n is accepted. Models with named
+	 * outputs are listed in the signature in sorted order of the names.
+	 */
+	@SuppressWarnings("unchecked")
+	private String outputLayer(Map<String, Object> config) {
+		if (!outName.startsWith(OUTPUT_PREFIX)) {
+			return outName;
+		}
+		Object outputLayers = config.get("output_layers");
+		List<Object> outputs;
+		if (outputLayers instanceof Map) {
+			Map<String, Object> named = (Map<String, Object>) outputLayers;
+			outputs = new ArrayList<Object>();
+			for (String key : new TreeMap<String, Object>(named).keySet()) {
+				outputs.add(named.get(key));
+			}
+		} else {
+			outputs = (List<Object>) outputLayers;
+		}
+		int index = Integer.parseInt(outName.substring(OUTPUT_PREFIX.length()));
+		if (index < 0 || index >= outputs.size()) {
+			throw new IllegalArgumentException("Output " + outName + " not found in model " + fpath);
+		}
+		return (String) ((List<Object>) outputs.get(index)).get(0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int[] inputShape(Map<String, Object> layer) {
+		Map<String, Object> config = (Map<String, Object>) layer.get("config");
+		Object shape = config.get("batch_input_shape");
+		if (shape instanceof Map) {
+			shape = ((Map<String, Object>) shape).get("items"); // serialized python tuple
+		}
+		List<Object> dims = (List<Object>) shape;
+		int[] out = new int[dims.size() - 1];
+		for (int i = 1; i < dims.size(); i++) {
+			if (dims.get(i) == null) {
+				throw new IllegalArgumentException("Input " + config.get("name") + " has an unknown dimension");
+			}
+			out[i - 1] = ((Double) dims.get(i)).intValue();
+		}
+		return out;
+	}
+
+	/**
+	 * Run the ANN and return results.
+	 *
+	 * @param rawData    Data in the form of doubles. The ArrayList enumerates
+	 *                   features, the first array dimension is batch index and the
+	 *                   second is reserved for dimensionality of the input (e.g.
+	 *                   time).
+	 * @param rawDataInt Same as RawData but for long integers. Ignored.
+	 * @return Result of prediction. First dimension is the batch number and second
+	 *         is Tensor dimension of the output (e.g. station)
+	 */
+	@Override
+	public float[][] estimate(ArrayList<double[][]> rawData, ArrayList<long[][]> rawDataInt) {
+		return estimate(SurrogateBatch.fromList(rawData));
+	}
+
+	@Override
+	public float[][] estimate(SurrogateBatch batch) {
+		return toRows(postProcess(run(plan, batch), batch.getNBatch(), plan.outputShape[0]), batch.getNBatch(),
+				plan.outputShape[0]);
+	}
+
+	@Override
+	public void estimate(SurrogateBatch batch, SurrogateOutputConsumer consumer) {
+		int nBatch = batch.getNBatch();
+		int nOut = plan.outputShape[0];
+		consumer.accept(postProcess(run(plan, batch), nBatch, nOut), nBatch, nOut);
+	}
+
+	/**
+	 * Sets the transformation applied to the raw model output. The default raises
+	 * values below {@link OutputPostProcessor#DEFAULT_FLOOR} to that floor, as
+	 * TensorWrapper does.
+	 */
+	public void setPostProcessor(OutputPostProcessor postProcessor) {
+		this.postProcessor = postProcessor;
+	}
+
+	/**
+	 * Returns true if the model can be evaluated by
+	 * {@link #estimateStreaming(SurrogateBatch, int)}, which requires a recurrent
+	 * model whose layers ahead of the recurrence act on each time step separately
+	 */
+	public boolean isStreamable() {
+		return streamable;
+	}
+
+	/**
+	 * Enables or disables streaming. When enabled, {@link SurrogateMonth} marches
+	 * through each month with a single pass of the recurrence instead of one full
+	 * window per day. Off by default because the result is an approximation.
+	 *
+	 * @throws IllegalStateException if the model is not streamable or is not fed
+	 *                               the daily history oldest first
+	 */
+	public void setStreaming(boolean streaming) {
+		if (streaming) {
+			if (!streamable) {
+				throw new IllegalStateException("Model " + fpath + " cannot be evaluated by streaming");
+			}
+			if (!(dayToANN instanceof DailyToSurrogateDefault) || ((DailyToSurrogateDefault) dayToANN).isReverse()) {
+				throw new IllegalStateException("Streaming requires a forward DailyToSurrogateDefault input transform");
+			}
+		}
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Returns true if streaming has been enabled with {@link #setStreaming(boolean)}
+	 */
+	@Override
+	public boolean supportsStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Evaluates consecutive days with a single pass of the recurrence per batch
+	 * member rather than one full window per day. The first day is evaluated on a
+	 * full window from a zero state exactly as by estimate(). Later days continue
+	 * the recurrent state, so their effective history is longer than the window
+	 * the model was trained on and the result approximates, rather than
+	 * reproduces, estimate() on the corresponding windows.
+	 *
+	 * @param histories one row per batch member for each feature holding the
+	 *                  window length plus nSteps - 1 days, oldest first
+	 * @param nSteps    number of consecutive days to evaluate, ending on the last
+	 *                  day of the histories
+	 * @return Result of prediction with nBatch x nSteps rows, the days of each
+	 *         batch member contiguous, and one column per output
+	 * @throws IllegalStateException if the model does not support streaming
+	 */
+	@Override
+	public float[][] estimateStreaming(SurrogateBatch histories, int nSteps) {
+		if (!streamable) {
+			throw new IllegalStateException("Model " + fpath + " cannot be evaluated by streaming");
+		}
+		Plan p = nSteps == 1 ? plan : streamPlans.computeIfAbsent(nSteps, this::buildPlan);
+		int nOut = plan.outputShape[0];
+		int nRow = histories.getNBatch() * nSteps;
+		return toRows(postProcess(run(p, histories), nRow, nOut), nRow, nOut);
+	}
+
+	private float[] run(Plan p, SurrogateBatch batch) {
+		int nBatch = batch.getNBatch();
+		float[][] values = new float[nFeatures + p.layers.size()][];
+		for (int i = 0; i < nFeatures; i++) {
+			int len = batch.getLagLength(i);
+			if (len != p.inputSize[i]) {
+				throw new IllegalArgumentException("Input " + tensorNames[i] + " has length " + len
+						+ " but the model expects " + p.inputSize[i]);
+			}
+			values[i] = new float[nBatch * len];
+			batch.copyFeature(i, values[i], 0);
+		}
+
+		for (int k = 0; k < p.layers.size(); k++) {
+			int[] in = p.layerInputs[k];
+			float[][] args = new float[in.length][];
+			for (int j = 0; j < in.length; j++) {
+				args[j] = values[in[j]];
+			}
+			values[nFeatures + k] = p.layers.get(k).apply(args, nBatch);
+		}
+		return values[p.outputSlot];
+	}
+
+	private FloatBuffer postProcess(float[] result, int nRow, int nOut) {
+		FloatBuffer out = FloatBuffer.wrap(result);
+		postProcessor.apply(out, nRow, nOut);
+		return out;
+	}
+
+	private static float[][] toRows(FloatBuffer result, int nRow, int nOut) {
+		float[][] out = new float[nRow][nOut];
+		for (int i = 0; i < nRow; i++) {
+			result.get(out[i]);
+		}
+		return out;
+	}
+
+	public String getName() {
+		return this.fpath;
+	}
+
+	@Override
+	public DailyToSurrogate getDailyToSurrogate() {
+		return dayToANN;
+	}
+
+	public String identifier() {
+		return this.fpath;
+	}
+
+	/**
+	 * True for another KerasSurrogate on the same model, inputs, output, daily
+	 * input packaging and post-processor
+	 */
+	@Override
+	public boolean isEquivalent(Surrogate other) {
+		if (other == this) {
+			return true;
+		}
+		if (!(other instanceof KerasSurrogate)) {
+			return false;
+		}
+		KerasSurrogate o = (KerasSurrogate) other;
+		return ModelRegistry.canonicalPath(fpath).equals(ModelRegistry.canonicalPath(o.fpath))
+				&& outName.equals(o.outName) && Arrays.equals(tensorNames, o.tensorNames)
+				&& Arrays.equals(tensorNamesInt, o.tensorNamesInt) && Objects.equals(dayToANN, o.dayToANN)
+				&& postProcessor == o.postProcessor;
+	}
+
+	/**
+	 * Returns the index of the input matching the given name among the float
+	 * inputs.
+	 *
+	 * @param inputName The name of the ANN input.
+	 * @return the index of the input if found.
+	 * @throws IllegalArgumentException if the input name is not found among the
+	 *                                  available tensor names.
+	 */
+	@Override
+	public int getInputIndex(String inputName) {
+		for (int i = 0; i < tensorNames.length; i++) {
+			if (tensorNames[i].equals(inputName)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Input name '" + inputName + "' not found among available tensor names: "
+				+ Arrays.toString(tensorNames));
+	}
+
+	@Override
+	public int getNFeatures() {
+		return this.nFeatures;
+	}
+}
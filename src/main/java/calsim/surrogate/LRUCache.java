@@ -2,7 +2,9 @@ package calsim.surrogate;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
-/** Very simple implementation of the Least Recently Used Cache
+/** Very simple implementation of the Least Recently Used Cache.
+ * Not safe for concurrent use, since even get() reorders entries; see
+ * {@link ConcurrentLRUCache} for a cache that may be shared between threads.
  * 
  * @param <K>
  * @param <V>
@@ -0,0 +1,197 @@
+package calsim.surrogate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.tensorflow.SavedModelBundle;
+
+/**
+ * Process-wide registry of loaded TensorFlow saved models. Several surrogates
+ * registered with {@link SalinitySurrogateManager} often use the same model,
+ * for instance for the monthly mean and the 14 day maximum at one location.
+ * Loading the model once and sharing its session saves startup time and
+ * memory. TensorFlow sessions may be run from several threads, and every
+ * {@link TensorWrapper} keeps its own per-call state, so sharing is safe.
+ *
+ * <p>Models are keyed by canonical path and session configuration, and are
+ * reference counted. Each {@link #acquire(String, byte[])} must be matched by a
+ * {@link #release(SavedModelBundle)}. The model is closed when the last user
+ * releases it.</p>
+ *
+ * <p>Models are loaded outside the registry lock, so loads of different models
+ * run in parallel and release or lookups are not held up by a slow load.
+ * Callers asking for a model that is still being loaded wait for that load
+ * rather than starting another.</p>
+ */
+public class ModelRegistry {
+
+	private static ModelRegistry _instance = null;
+
+	private static final class Key {
+		final String path;
+		final byte[] configProto;
+
+		Key(String path, byte[] configProto) {
+			this.path = path;
+			this.configProto = configProto == null ? new byte[0] : configProto.clone();
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * path.hashCode() + Arrays.hashCode(configProto);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			Key other = (Key) obj;
+			return path.equals(other.path) && Arrays.equals(configProto, other.configProto);
+		}
+	}
+
+	private static final class Entry {
+		final Key key;
+		final CompletableFuture<SavedModelBundle> loaded = new CompletableFuture<SavedModelBundle>();
+		int refCount;
+
+		Entry(Key key) {
+			this.key = key;
+		}
+	}
+
+	private final Map<Key, Entry> byKey = new HashMap<Key, Entry>();
+	private final Map<SavedModelBundle, Entry> byBundle = new IdentityHashMap<SavedModelBundle, Entry>();
+
+	ModelRegistry() {
+	}
+
+	/**
+	 * Returns the singleton instance.
+	 * @return the ModelRegistry instance.
+	 */
+	public static synchronized ModelRegistry getInstance() {
+		if (_instance == null) {
+			_instance = new ModelRegistry();
+		}
+		return _instance;
+	}
+
+	/**
+	 * Returns the model saved in fpath with the "serve" tag, loading it if it is
+	 * not already loaded with the same session configuration
+	 *
+	 * @param fpath       path containing the saved model
+	 * @param configProto serialized ConfigProto for the session, or null for the
+	 *                    TensorFlow defaults
+	 * @return the shared model, to be handed back with
+	 *         {@link #release(SavedModelBundle)}
+	 * @throws UncheckedIOException if the path cannot be resolved
+	 */
+	public SavedModelBundle acquire(String fpath, byte[] configProto) {
+		Key key = new Key(canonicalPath(fpath), configProto);
+		Entry entry;
+		boolean load = false;
+		synchronized (this) {
+			entry = byKey.get(key);
+			if (entry == null) {
+				entry = new Entry(key);
+				byKey.put(key, entry);
+				load = true;
+			}
+			entry.refCount++;
+		}
+		if (load) {
+			try {
+				SavedModelBundle bundle = configProto == null ? SavedModelBundle.load(fpath, "serve")
+						: SavedModelBundle.loader(fpath).withTags("serve").withConfigProto(configProto).load();
+				synchronized (this) {
+					byBundle.put(bundle, entry);
+				}
+				entry.loaded.complete(bundle);
+			} catch (RuntimeException | Error e) {
+				// Callers waiting on this load see the same failure and a later
+				// acquire tries again
+				synchronized (this) {
+					byKey.remove(key);
+				}
+				entry.loaded.completeExceptionally(e);
+				throw e;
+			}
+		}
+		try {
+			return entry.loaded.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives up one reference to a model obtained from
+	 * {@link #acquire(String, byte[])}, closing it if it was the last
+	 *
+	 * @throws IllegalArgumentException if the model is not held by the registry
+	 */
+	public void release(SavedModelBundle bundle) {
+		synchronized (this) {
+			Entry entry = byBundle.get(bundle);
+			if (entry == null) {
+				throw new IllegalArgumentException("Model was not acquired from the registry or was already closed");
+			}
+			entry.refCount--;
+			if (entry.refCount > 0) {
+				return;
+			}
+			byKey.remove(entry.key);
+			byBundle.remove(bundle);
+		}
+		// No other user can reach the model once it is out of the maps
+		bundle.close();
+	}
+
+	/**
+	 * Returns the number of users of the model in fpath, summed over session
+	 * configurations
+	 */
+	public synchronized int getRefCount(String fpath) {
+		String path = canonicalPath(fpath);
+		int count = 0;
+		for (Entry entry : byKey.values()) {
+			if (entry.key.path.equals(path)) {
+				count += entry.refCount;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of models currently loaded or being loaded
+	 */
+	public synchronized int size() {
+		return byKey.size();
+	}
+
+	static String canonicalPath(String fpath) {
+		try {
+			return new File(fpath).getCanonicalPath();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not resolve model path " + fpath, e);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package calsim.surrogate;
+
+import java.time.YearMonth;
+
+/**
+ * Precomputed month lengths shared by the disaggregators and
+ * {@link SurrogateMonth}. Every monthly step asks several times for the
+ * lengths of the months in the history, the total number of days and the
+ * index of the first day of the current month. Building {@code YearMonth}
+ * objects for that on each call is wasted work, so the lengths of all months
+ * from January 1900 to December 2100 and their running total are tabulated
+ * once. The history quantities for any number of months are then a lookup and
+ * a subtraction.
+ *
+ * <p>Months outside the table are computed with {@code java.time} as before.</p>
+ */
+public final class MonthCalendar {
+
+	public static final int FIRST_YEAR = 1900;
+	public static final int LAST_YEAR = 2100;
+
+	private static final int N_TABLE = (LAST_YEAR - FIRST_YEAR + 1) * 12;
+	private static final int[] LENGTH = new int[N_TABLE];
+	// CUMULATIVE[k] is the number of days in the table before month k
+	private static final int[] CUMULATIVE = new int[N_TABLE + 1];
+
+	static {
+		for (int k = 0; k < N_TABLE; k++) {
+			LENGTH[k] = YearMonth.of(FIRST_YEAR + k / 12, k % 12 + 1).lengthOfMonth();
+			CUMULATIVE[k + 1] = CUMULATIVE[k] + LENGTH[k];
+		}
+	}
+
+	private MonthCalendar() {
+	}
+
+	/**
+	 * Index of a month in the table, or -1 if the month is not in the table
+	 */
+	private static int index(int year, int month) {
+		if (year < FIRST_YEAR || year > LAST_YEAR || month < 1 || month > 12) {
+			return -1;
+		}
+		return (year - FIRST_YEAR) * 12 + month - 1;
+	}
+
+	/**
+	 * True if the nMonth months ending in (year, month) are all in the table
+	 */
+	private static boolean inTable(int k, int nMonth) {
+		return k >= 0 && k - nMonth + 1 >= 0;
+	}
+
+	/**
+	 * Returns the number of days in a month
+	 *
+	 * @param year  calendar year
+	 * @param month month, January = 1
+	 */
+	public static int lengthOfMonth(int year, int month) {
+		int k = index(year, month);
+		return k >= 0 ? LENGTH[k] : YearMonth.of(year, month).lengthOfMonth();
+	}
+
+	/**
+	 * Returns the number of days in the month lag months before (year, month)
+	 *
+	 * @param lag number of months back, 0 for the month itself
+	 */
+	public static int lengthOfMonthBefore(int year, int month, int lag) {
+		int k = index(year, month);
+		return inTable(k, lag + 1) ? LENGTH[k - lag]
+				: YearMonth.of(year, month).minusMonths((long) lag).lengthOfMonth();
+	}
+
+	/**
+	 * Lists the number of days in the nMonth months ending in (year, month), the
+	 * latest first. See {@link DisaggregateMonths#daysMonth(int, int)}.
+	 *
+	 * @return a new array that the caller may modify
+	 */
+	public static int[] daysMonth(int year, int month, int nMonth) {
+		int[] out = new int[nMonth];
+		for (int lag = 0; lag < nMonth; lag++) {
+			out[lag] = lengthOfMonthBefore(year, month, lag);
+		}
+		return out;
+	}
+
+	/**
+	 * Returns the total number of days in the nMonth months ending in
+	 * (year, month)
+	 */
+	public static int daysInHistory(int year, int month, int nMonth) {
+		int k = index(year, month);
+		if (inTable(k, nMonth)) {
+			return CUMULATIVE[k + 1] - CUMULATIVE[k + 1 - nMonth];
+		}
+		int total = 0;
+		for (int lag = 0; lag < nMonth; lag++) {
+			total += lengthOfMonthBefore(year, month, lag);
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the index of the first day of (year, month) in a daily series
+	 * that starts with the first day of the nMonth months ending in
+	 * (year, month), that is the number of days in the earlier nMonth-1 months
+	 */
+	public static int offsetFirstMonth(int year, int month, int nMonth) {
+		return daysInHistory(year, month, nMonth) - lengthOfMonth(year, month);
+	}
+}
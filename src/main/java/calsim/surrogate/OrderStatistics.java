@@ -0,0 +1,152 @@
+package calsim.surrogate;
+
+import java.util.Arrays;
+
+/**
+ * Order statistics of daily series without sorting them. Used by
+ * {@link AggregateMonths#NTH_SMALLEST}, which runs for every batch member and
+ * location during X2 day-count inversions and only needs one value of the
+ * ordered month.
+ *
+ * <p>Selection is introselect: quickselect with a median-of-three pivot that
+ * falls back to sorting the remaining range if partitioning stops making
+ * progress, so the worst case stays O(n log n). The values are copied to a
+ * per-thread scratch buffer that is reused between calls; the input is not
+ * modified.</p>
+ */
+public final class OrderStatistics {
+
+	private static final ThreadLocal<double[]> SCRATCH = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[32];
+		}
+	};
+
+	private OrderStatistics() {
+	}
+
+	/**
+	 * Returns the nth smallest of values[0 .. length-1], n = 1 being the
+	 * smallest
+	 *
+	 * @throws IllegalArgumentException if n is not between 1 and length
+	 */
+	public static double nthSmallest(double[] values, int length, int n) {
+		checkRank(n, length);
+		double[] a = scratch(values, length);
+		return select(a, 0, length - 1, n - 1);
+	}
+
+	/**
+	 * Returns several order statistics of values[0 .. length-1] with one
+	 * selection. Distinct ranks are selected in increasing order, each within the
+	 * part of the buffer left above the previous one, so later ranks partition
+	 * progressively smaller ranges. Used for several day-count targets at once.
+	 *
+	 * @param ns ranks, 1 being the smallest, in any order and possibly repeated
+	 * @return the nth smallest value for each entry of ns
+	 * @throws IllegalArgumentException if a rank is not between 1 and length
+	 */
+	public static double[] nthSmallest(double[] values, int length, int[] ns) {
+		for (int n : ns) {
+			checkRank(n, length);
+		}
+		double[] a = scratch(values, length);
+		double[] out = new double[ns.length];
+		int lo = 0;
+		int previous = 0;
+		while (true) {
+			// Next larger rank, found by scanning as there are only a few
+			int n = Integer.MAX_VALUE;
+			for (int k : ns) {
+				if (k > previous && k < n) {
+					n = k;
+				}
+			}
+			if (n == Integer.MAX_VALUE) {
+				return out;
+			}
+			double value = select(a, lo, length - 1, n - 1);
+			for (int i = 0; i < ns.length; i++) {
+				if (ns[i] == n) {
+					out[i] = value;
+				}
+			}
+			lo = n;
+			previous = n;
+		}
+	}
+
+	private static void checkRank(int n, int length) {
+		if (n < 1 || n > length) {
+			throw new IllegalArgumentException("Rank " + n + " is outside 1.." + length);
+		}
+	}
+
+	private static double[] scratch(double[] values, int length) {
+		double[] a = SCRATCH.get();
+		if (a.length < length) {
+			a = new double[Math.max(length, 2 * a.length)];
+			SCRATCH.set(a);
+		}
+		System.arraycopy(values, 0, a, 0, length);
+		return a;
+	}
+
+	/**
+	 * Rearranges a[lo .. hi] so that a[k] holds the value it would have if the
+	 * range were sorted, with no larger values before it and no smaller ones
+	 * after it, and returns a[k]
+	 */
+	static double select(double[] a, int lo, int hi, int k) {
+		int depth = 2 * (32 - Integer.numberOfLeadingZeros(hi - lo + 1));
+		while (hi > lo) {
+			if (depth-- == 0) {
+				Arrays.sort(a, lo, hi + 1);
+				return a[k];
+			}
+			// Median of three as pivot, moved to a[lo]
+			int mid = (lo + hi) >>> 1;
+			if (a[mid] < a[lo])
+				swap(a, mid, lo);
+			if (a[hi] < a[lo])
+				swap(a, hi, lo);
+			if (a[hi] < a[mid])
+				swap(a, hi, mid);
+			swap(a, lo, mid);
+			double pivot = a[lo];
+			// Hoare partition of a[lo+1 .. hi] around the pivot
+			int i = lo;
+			int j = hi + 1;
+			while (true) {
+				while (a[++i] < pivot) {
+					if (i == hi)
+						break;
+				}
+				while (pivot < a[--j]) {
+					if (j == lo)
+						break;
+				}
+				if (i >= j)
+					break;
+				swap(a, i, j);
+			}
+			swap(a, lo, j);
+			if (j == k) {
+				return a[k];
+			} else if (j > k) {
+				hi = j - 1;
+			} else {
+				lo = j + 1;
+			}
+		}
+		return a[k];
+	}
+
+	private static void swap(double[] a, int i, int j) {
+		double t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+}
@@ -0,0 +1,47 @@
+package calsim.surrogate;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Transformation applied in place to the raw output of an ANN before it is
+ * handed to the caller, such as the lower bound TensorWrapper has always
+ * imposed so that X2 and EC never come out at or below zero.
+ */
+@FunctionalInterface
+public interface OutputPostProcessor {
+
+	/** Leaves the output unchanged */
+	OutputPostProcessor NONE = (output, nRow, nOut) -> {
+	};
+
+	/** Lower bound used by TensorWrapper and KerasSurrogate unless replaced */
+	float DEFAULT_FLOOR = 0.1f;
+
+	/** Shared post-processor imposing {@link #DEFAULT_FLOOR} */
+	OutputPostProcessor DEFAULT = floor(DEFAULT_FLOOR);
+
+	/**
+	 * Transforms the output in place. Implementations use absolute indexing and
+	 * leave the position of the buffer unchanged.
+	 *
+	 * @param output row-major output with nOut values per row
+	 * @param nRow   number of rows (batch members)
+	 * @param nOut   number of outputs per row
+	 */
+	void apply(FloatBuffer output, int nRow, int nOut);
+
+	/**
+	 * Returns a post-processor that raises every value below floor to floor
+	 */
+	static OutputPostProcessor floor(float floor) {
+		return (output, nRow, nOut) -> {
+			int start = output.position();
+			int end = start + nRow * nOut;
+			for (int i = start; i < end; i++) {
+				if (output.get(i) < floor) {
+					output.put(i, floor);
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,127 @@
+package calsim.surrogate;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal reader for the protocol buffer wire format, enough to walk the few
+ * TensorFlow messages (checkpoint index entries, object graph, Keras metadata)
+ * needed to load a saved model without the protobuf runtime. Fields are read
+ * in order with {@link #next()} and the value is then consumed with the accessor
+ * matching the wire type, or skipped.
+ */
+final class ProtoReader {
+
+	static final int VARINT = 0;
+	static final int FIXED64 = 1;
+	static final int LENGTH_DELIMITED = 2;
+	static final int FIXED32 = 5;
+
+	private final byte[] buf;
+	private int pos;
+	private final int limit;
+	private int field;
+	private int wireType;
+
+	ProtoReader(byte[] buf) {
+		this(buf, 0, buf.length);
+	}
+
+	ProtoReader(byte[] buf, int offset, int length) {
+		this.buf = buf;
+		this.pos = offset;
+		this.limit = offset + length;
+	}
+
+	/**
+	 * Advances to the next field
+	 * @return false when the message is exhausted
+	 */
+	boolean next() {
+		if (pos >= limit) {
+			return false;
+		}
+		long tag = varint();
+		field = (int) (tag >>> 3);
+		wireType = (int) (tag & 7);
+		return true;
+	}
+
+	int field() {
+		return field;
+	}
+
+	int wireType() {
+		return wireType;
+	}
+
+	/**
+	 * Returns the number of unread bytes
+	 */
+	int remaining() {
+		return limit - pos;
+	}
+
+	long varint() {
+		long result = 0;
+		int shift = 0;
+		while (true) {
+			if (pos >= limit) {
+				throw new IllegalStateException("Truncated varint in protocol buffer");
+			}
+			byte b = buf[pos++];
+			result |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+			shift += 7;
+		}
+	}
+
+	/**
+	 * Returns a reader over the current length delimited field
+	 */
+	ProtoReader message() {
+		int len = (int) varint();
+		ProtoReader out = new ProtoReader(buf, pos, len);
+		pos += len;
+		return out;
+	}
+
+	byte[] bytes() {
+		int len = (int) varint();
+		byte[] out = new byte[len];
+		System.arraycopy(buf, pos, out, 0, len);
+		pos += len;
+		return out;
+	}
+
+	String string() {
+		int len = (int) varint();
+		String out = new String(buf, pos, len, StandardCharsets.UTF_8);
+		pos += len;
+		return out;
+	}
+
+	/**
+	 * Skips the value of the current field
+	 */
+	void skip() {
+		switch (wireType) {
+		case VARINT:
+			varint();
+			break;
+		case FIXED64:
+			pos += 8;
+			break;
+		case LENGTH_DELIMITED:
+			int len = (int) varint();
+			pos += len;
+			break;
+		case FIXED32:
+			pos += 4;
+			break;
+		default:
+			throw new IllegalStateException("Unsupported wire type " + wireType + " for field " + field);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package calsim.surrogate;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal writer for the protocol buffer wire format, the counterpart of
+ * {@link ProtoReader}. Used to build the small configuration messages that the
+ * TensorFlow Java API accepts as serialized bytes without the protobuf runtime.
+ */
+final class ProtoWriter {
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+	ProtoWriter varint(int field, long value) {
+		tag(field, ProtoReader.VARINT);
+		rawVarint(value);
+		return this;
+	}
+
+	ProtoWriter bool(int field, boolean value) {
+		return varint(field, value ? 1 : 0);
+	}
+
+	ProtoWriter bytes(int field, byte[] value) {
+		tag(field, ProtoReader.LENGTH_DELIMITED);
+		rawVarint(value.length);
+		out.write(value, 0, value.length);
+		return this;
+	}
+
+	ProtoWriter string(int field, String value) {
+		return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	ProtoWriter message(int field, ProtoWriter value) {
+		return bytes(field, value.toByteArray());
+	}
+
+	byte[] toByteArray() {
+		return out.toByteArray();
+	}
+
+	private void tag(int field, int wireType) {
+		rawVarint((field << 3) | wireType);
+	}
+
+	/**
+	 * Writes a varint. Negative values (e.g. enums below zero) take ten bytes as
+	 * the wire format requires.
+	 */
+	private void rawVarint(long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+}
@@ -8,21 +8,31 @@ import java.net.URLDecoder;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 public class ResourceUtils {
 
+    // Folders already extracted from the jar, by resource path
+    private static final Map<String, File> extracted = new HashMap<>();
+
     /**
      * Extracts a resource folder (e.g. "/models/my_model") to a temporary folder.
      * If the resource is directly on the file system (in a dev environment),
-     * simply returns that File.
+     * simply returns that File. A folder is extracted from the jar only once per
+     * process; later calls return the same temporary folder.
      *
      * @param resourceFolderPath the path to the resource folder (should start with a "/")
      * @return a File representing the folder on disk.
      * @throws IOException if extraction fails.
      */
-    public static File extractResourceFolder(String resourceFolderPath) throws IOException {
+    public static synchronized File extractResourceFolder(String resourceFolderPath) throws IOException {
+        File cached = extracted.get(resourceFolderPath);
+        if (cached != null && cached.isDirectory()) {
+            return cached;
+        }
         // Get the URL of the resource folder.
     	URL url = ResourceUtils.class.getResource(resourceFolderPath);
         //URL url = ResourceUtils.class.getResource(resourceFolderPath);
@@ -60,6 +70,7 @@ public class ResourceUtils {
                 }
             }
             jar.close();
+            extracted.put(resourceFolderPath, tempDir);
             return tempDir;
         }
         throw new IOException("Unsupported protocol: " + url.getProtocol());
@@ -54,6 +54,31 @@ public class RunRecord {
         this(surrogate, extractLatestFeatures(inputs), intInput0, intInput1, intContext, year, month, cycle, aveType, aveParam);
     }
 
+    public RunRecord(Surrogate surrogate, SurrogateBatch inputs, int intInput0, int intInput1, int intContext,
+                     int year, int month, int cycle, int aveType, double aveParam) {
+        this(surrogate, extractLatestFeatures(inputs), intInput0, intInput1, intContext, year, month, cycle, aveType, aveParam);
+    }
+
+    /**
+     * Extracts the current period value of each feature from a contiguous batch.
+     * Values are single precision, so keys built this way match other keys built
+     * from a SurrogateBatch but not keys built from the double valued list form.
+     */
+    public static double[] extractLatestFeatures(SurrogateBatch inputs) {
+        if (inputs == null || inputs.getNFeatures() == 0) {
+            return new double[0];
+        }
+        if (inputs.getNBatch() == 0) {
+            throw new IllegalArgumentException("Input batch is empty.");
+        }
+        for (int i = 0; i < inputs.getNFeatures(); i++) {
+            if (inputs.getLagLength(i) == 0) {
+                throw new IllegalArgumentException("Input for feature " + i + " is empty or null.");
+            }
+        }
+        return inputs.latestFeatures();
+    }
+
     public static double[] extractLatestFeatures(ArrayList<double[][]> inputs) {
         if (inputs == null || inputs.isEmpty()) {
             return new double[0];
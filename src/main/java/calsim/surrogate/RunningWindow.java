@@ -0,0 +1,69 @@
+package calsim.surrogate;
+
+/**
+ * Sliding-sum evaluation of running means over daily series, used by the
+ * running-average statistics in {@link AggregateMonths}. Each window sum is the
+ * previous one plus the day entering and minus the day leaving, so a month
+ * costs one pass over the days whatever the window length.
+ */
+public final class RunningWindow {
+
+	/**
+	 * Value returned when there is no complete window, matching the initial
+	 * maximum of the aggregators
+	 */
+	public static final double NO_WINDOW = -9999;
+
+	private RunningWindow() {
+	}
+
+	/**
+	 * Returns the largest mean of window consecutive values over the windows
+	 * ending at indices firstEnd (inclusive) to stopEnd (exclusive)
+	 *
+	 * @param daily    daily series
+	 * @param firstEnd index of the last day of the first window; the window
+	 *                 reaches back to firstEnd-window+1
+	 * @param stopEnd  one past the index of the last day of the last window
+	 * @param window   number of days in a window
+	 * @return the largest window mean, or {@link #NO_WINDOW} if the range is
+	 *         empty or no mean exceeds it
+	 */
+	public static double maxMean(double[] daily, int firstEnd, int stopEnd, int window) {
+		if (firstEnd >= stopEnd) {
+			return NO_WINDOW;
+		}
+		double sum = initialSum(daily, firstEnd, window);
+		double maxSum = sum;
+		for (int i = firstEnd + 1; i < stopEnd; i++) {
+			sum += daily[i] - daily[i - window];
+			if (sum > maxSum) {
+				maxSum = sum;
+			}
+		}
+		return Math.max(maxSum / window, NO_WINDOW);
+	}
+
+	/**
+	 * Applies {@link #maxMean(double[], int, int, int)} to every row of a
+	 * [nbatch][nday] block
+	 *
+	 * @param out receives one value per row
+	 */
+	public static void maxMean(double[][] daily, int firstEnd, int stopEnd, int window, double[] out) {
+		for (int ib = 0; ib < daily.length; ib++) {
+			out[ib] = maxMean(daily[ib], firstEnd, stopEnd, window);
+		}
+	}
+
+	/**
+	 * Sum of the window ending at end, added oldest first
+	 */
+	static double initialSum(double[] daily, int end, int window) {
+		double sum = 0.;
+		for (int j = end - window + 1; j <= end; j++) {
+			sum += daily[j];
+		}
+		return sum;
+	}
+}
@@ -132,14 +132,16 @@ public enum SalinitySurrogateManager { // ENUM is used to ensure singleton
 	final HashMap<Integer, Integer> surrogateNdx = new HashMap<Integer, Integer>();
 
 	public final int CACHELEN = 1000; 
-	final Map<RunRecord, double[]> cachedConstraints = new LRUCache<>(1000); //{rhs, sacCoef, expCoef}.
-	final Map<RunRecord, double[][]> cachedGradient = new LRUCache<>(1000);
-	final Map<RunRecord, double[][]> cachedSurrogate = new LRUCache<>(1000);
-	final Map<RunRecord, GridResult> cachedGridResult = new LRUCache<>(1000);
-	final Map<RunRecord, Float> cachedRequiredFlow = new LRUCache<>(1000);
+	// Shared by concurrent callers; look up with get() and test for null
+	final ConcurrentLRUCache<RunRecord, double[]> cachedConstraints = new ConcurrentLRUCache<>(1000); //{rhs, sacCoef, expCoef}.
+	final ConcurrentLRUCache<RunRecord, double[][]> cachedGradient = new ConcurrentLRUCache<>(1000);
+	final ConcurrentLRUCache<RunRecord, double[][]> cachedSurrogate = new ConcurrentLRUCache<>(1000);
+	final ConcurrentLRUCache<RunRecord, GridResult> cachedGridResult = new ConcurrentLRUCache<>(1000);
+	final ConcurrentLRUCache<RunRecord, Float> cachedRequiredFlow = new ConcurrentLRUCache<>(1000);
 	private Logger LOGGER = null;
 	private boolean header=false;
 	boolean isLogging = false;
+	boolean multiStatistic = false;
 
 	SalinitySurrogateManager() {
 		init();
@@ -170,6 +172,22 @@ public enum SalinitySurrogateManager { // ENUM is used to ensure singleton
 		}
 	}	
 
+	/**
+	 * When enabled, an annEC evaluation that misses the cache also computes the
+	 * statistics of every other registered ave type whose surrogate gives the same
+	 * daily output, such as the monthly mean and the 14 day maximum of one model.
+	 * The model is run once and all of the statistics are cached, so the calls for
+	 * the other ave types in the same month are cache hits. Statistics that take a
+	 * parameter are only computed when asked for. Off by default.
+	 */
+	public void setMultiStatistic(boolean multiStatistic) {
+		this.multiStatistic = multiStatistic;
+	}
+
+	public boolean isMultiStatistic() {
+		return multiStatistic;
+	}
+
 	/**
 	 * Set the output index that applies for an encoded location  
 	 * @param location the CalSim location that will be sent in
@@ -271,13 +289,14 @@ public enum SalinitySurrogateManager { // ENUM is used to ensure singleton
 		RunRecord recConstraint = new RunRecord(sm.getDailySurrogate(), monthlyInput, 
 				location, 0, CACHE_REC_CONSTRAINT ,
 				year, month, cyclePlaceholder, ave_type);        
-		if (cachedConstraints.containsKey(recConstraint)) {
+		double[] cachedConstraint = cachedConstraints.get(recConstraint);
+		if (cachedConstraint != null) {
 			if (verbose) {
 			  System.out.println("Using cached constraint for location: " + location + " siteNDX: " + siteNDX);
 			  System.out.println(recConstraint.toString());
-			  System.out.println(Arrays.toString(cachedConstraints.get(recConstraint)));
+			  System.out.println(Arrays.toString(cachedConstraint));
 			}
-			return cachedConstraints.get(recConstraint)[variable];
+			return cachedConstraint[variable];
 		}
 		if (verbose) {System.out.println("Cached constraint not found");}
 	    //public RunRecord(Surrogate surrogate, double[] floatInputs, 
@@ -289,14 +308,13 @@ public enum SalinitySurrogateManager { // ENUM is used to ensure singleton
 				0, CACHE_REC_LINEGEN,
 				year, month, cyclePlaceholder, ave_type);
 
-		GridResult gr;
+		GridResult gr = cachedGridResult.get(rec);
 		double loBound0 = 4000, hiBound0 = 22000;
 		double loBound1 = 800., hiBound1 = 12800;
 
 
-		if (this.cachedGridResult.containsKey(rec)) {
+		if (gr != null) {
 			if (verbose){System.out.println("&&&&&&&&&&&&& In Grid, Key recognized: " + rec.toString());}
-			gr = cachedGridResult.get(rec);
 		} else {
 			if (verbose){System.out.println("************* In Grid, Key NOT recognized: " + rec.toString());}
 		
@@ -325,8 +343,9 @@ public enum SalinitySurrogateManager { // ENUM is used to ensure singleton
 		} else {
 			if (verbose){System.out.println("Year " + year + " Month " + month + " sometimes feasible");}
 		}
-		double[][] grad = cachedGradient.containsKey(rec) ? cachedGradient.get(rec) : linear.gradient(monthlyInput, year, month);
-		if (!cachedGradient.containsKey(rec)) {
+		double[][] grad = cachedGradient.get(rec);
+		if (grad == null) {
+			grad = linear.gradient(monthlyInput, year, month);
 			if (verbose){System.out.println("Generated gradient with dimensions " + grad.length + " " + grad[0].length);}
 			cachedGradient.put(rec, grad);
 		}
@@ -526,15 +545,19 @@ public enum SalinitySurrogateManager { // ENUM is used to ensure singleton
 
 		int locIndex = this.getIndexForSite(location);
 		//System.out.println("annEC Location: "+location+" locIndex "+locIndex);
-		if (cachedSurrogate.containsKey(rec)) {
+		double[][] cached = cachedSurrogate.get(rec);
+		if (cached != null) {
 			//System.out.println("================= Surrogate cache found " + rec.toString());
-			double[][] cached = cachedSurrogate.get(rec);
 			//System.out.println("Dimensions of cached " + cached.length + " " + cached[0].length);
 			return (float) cached[0][locIndex];
 		} else {
 			//System.out.println("Surrogate cache NOT found " + rec.toString());
-			sm.getAgg().setThreshold(ave_thresh);
-			double[][] eval = sm.annMonth(monthly, year, month);
+			// The averaging parameter is the threshold, or the rank for nth smallest
+			int nth = (ave_type == AggregateMonths.NTH_SMALLEST.calsimCode && isNearlyInteger(ave_thresh, 1e-4))
+					? (int) Math.round(ave_thresh) : 0;
+			Aggregator aggregator = Aggregator.of(sm.getAgg(), nth, ave_thresh);
+			double[][] eval = multiStatistic ? annECShared(sm, monthly, ave_type, year, month, aggregator)
+					: sm.annMonth(monthly, year, month, aggregator);
 			//System.out.println("Caching with dimensions of eval " + eval.length + " " + eval[0].length);
 			cachedSurrogate.put(rec, eval);
 			return (float) eval[0][locIndex];
@@ -542,6 +565,44 @@ public enum SalinitySurrogateManager { // ENUM is used to ensure singleton
 	}
 
 
+	/**
+	 * Evaluates sm with the requested aggregator plus those of the other ave types
+	 * that share its daily output and are not yet cached for these inputs, caches
+	 * the extra statistics and returns the requested one
+	 */
+	private double[][] annECShared(SurrogateMonth sm, ArrayList<double[][]> monthly, int ave_type, int year,
+			int month, Aggregator aggregator) {
+		int cyclePlaceholder = 0;
+		ArrayList<Aggregator> aggregators = new ArrayList<Aggregator>();
+		ArrayList<RunRecord> records = new ArrayList<RunRecord>();
+		ArrayList<Integer> aveTypes = new ArrayList<Integer>();
+		aggregators.add(aggregator);
+		records.add(null);
+		aveTypes.add(ave_type);
+		for (Map.Entry<SurrogateIdentifier, SurrogateMonth> entry : surrogateForLoc.entrySet()) {
+			Integer otherType = entry.getKey().aveType;
+			SurrogateMonth other = entry.getValue();
+			if (aveTypes.contains(otherType) || other.getAgg().isParameterized() || !sm.sharesDailyOutput(other)) {
+				continue;
+			}
+			// Keyed on the other registration's surrogate, as its own annEC call will be
+			RunRecord rec = new RunRecord(other.getDailySurrogate(), monthly, 0, 0, CACHE_REC_ANNEC,
+					year, month, cyclePlaceholder, otherType, RunRecord.NO_AVG_PARAM);
+			if (cachedSurrogate.containsKey(rec)) {
+				continue;
+			}
+			aggregators.add(Aggregator.of(other.getAgg()));
+			records.add(rec);
+			aveTypes.add(otherType);
+		}
+		double[][][] evals = sm.annMonth(monthly, year, month, aggregators.toArray(new Aggregator[0]));
+		for (int i = 1; i < evals.length; i++) {
+			cachedSurrogate.put(records.get(i), evals[i]);
+		}
+		return evals[0];
+	}
+
+
 	/**
 	 * Given historical input, location find the required Sacramento flow to meet 
 	 * a salinity or EC Target if such a value lies between sacLoBound and sacHiBound.
@@ -601,8 +662,9 @@ public enum SalinitySurrogateManager { // ENUM is used to ensure singleton
 		// We are using an integer slot for caching avgParam and thus requiring it
 		// to be an integer ... we could relax this if we created another floating point
 		// slot in RunRecord. Let's see if anyone ever notices
-		sm.getAgg().setThreshold(target); // this does no harm even if unused 
-		sm.getAgg().setN(intInput1);      // 
+		// Parameters travel with the aggregator rather than being set on the shared
+		// AggregateMonths constant, so concurrent calls do not interfere
+		Aggregator aggregator = Aggregator.of(sm.getAgg(), intInput1, target);
 		
 		
 		// Set the context field to indicate requiredFlow caching.
@@ -610,9 +672,10 @@ public enum SalinitySurrogateManager { // ENUM is used to ensure singleton
 				intInput0, intInput1, CACHE_REC_REQFLOW_BASE,
 				year, month, cyclePlaceholder, ave_type, aggParam);
 
-		if (cachedRequiredFlow.containsKey(rec)) {
+		Float cachedReq = cachedRequiredFlow.get(rec);
+		if (cachedReq != null) {
 			//System.out.println("Required flow cache found: " + rec.toString());
-			float fReq = cachedRequiredFlow.get(rec);
+			float fReq = cachedReq;
 			//System.out.println("Value for location "+ getLocationCode(location) + " is "+fReq);
 			return fReq;
 		} else {
@@ -620,7 +683,7 @@ public enum SalinitySurrogateManager { // ENUM is used to ensure singleton
 			//System.out.println("Using surrogate: "+sm.getDailySurrogate().getName());
 		}
 
-		InverseSurrogateMonth ism = new InverseSurrogateMonth(sm);
+		InverseSurrogateMonth ism = new InverseSurrogateMonth(sm, aggregator);
 		int flowIndex = 0;
 		int locIndex = this.getIndexForSite(location);
 		//System.out.println("Using location "+location+" output index: "+locIndex);
@@ -636,6 +699,69 @@ public enum SalinitySurrogateManager { // ENUM is used to ensure singleton
 	}
 
 
+	/**
+	 * Same as
+	 * {@link #requiredFlow(double, ArrayList, double, double, int, int, int, int, double)}
+	 * for several day counts of an nth smallest (X2 day-count) target at once.
+	 * Each result equals that of the single call for its day count and shares its
+	 * cache entry, but the searches for the day counts not yet cached run
+	 * together: every surrogate evaluation serves all of them and their ranks are
+	 * selected from the daily output with one selection.
+	 *
+	 * @param nths day counts, each an nth smallest rank
+	 * @return required flow for each day count, in the same order
+	 * @throws IllegalArgumentException if ave_type is not
+	 *                                  {@link AggregateMonths#NTH_SMALLEST}
+	 */
+	public float[] requiredFlow(double target, ArrayList<double[][]> monthlyInputs, double flowLoBound,
+			double flowHiBound, int location, int ave_type, int month, int year, int[] nths) {
+		if (ave_type != AggregateMonths.NTH_SMALLEST.calsimCode) {
+			throw new IllegalArgumentException(
+					"Several day counts require the nth smallest average type, but got: " + ave_type);
+		}
+		SurrogateMonth sm = getSurrogateForSite(location, ave_type);
+		int cyclePlaceholder = 0;
+		double[] features = RunRecord.extractLatestFeatures(monthlyInputs);
+		features[0] = 0.0; // as for the single day count, so cache entries are shared
+
+		float[] reqs = new float[nths.length];
+		RunRecord[] recs = new RunRecord[nths.length];
+		ArrayList<Integer> toSolve = new ArrayList<Integer>();
+		for (int i = 0; i < nths.length; i++) {
+			recs[i] = new RunRecord(sm.getDailySurrogate(), features, location, nths[i], CACHE_REC_REQFLOW_BASE,
+					year, month, cyclePlaceholder, ave_type, target);
+			Float cachedReq = cachedRequiredFlow.get(recs[i]);
+			if (cachedReq != null) {
+				reqs[i] = cachedReq;
+			} else {
+				toSolve.add(i);
+			}
+		}
+		if (toSolve.isEmpty()) {
+			return reqs;
+		}
+
+		Aggregator[] aggregators = new Aggregator[toSolve.size()];
+		for (int k = 0; k < aggregators.length; k++) {
+			aggregators[k] = Aggregator.of(sm.getAgg(), nths[toSolve.get(k)], target);
+		}
+		InverseSurrogateMonth ism = new InverseSurrogateMonth(sm);
+		int flowIndex = 0;
+		int locIndex = this.getIndexForSite(location);
+		double[] solved = ism.invertAll(target, monthlyInputs, flowIndex, aggregators, flowLoBound, flowHiBound,
+				year, month, locIndex);
+		for (int k = 0; k < solved.length; k++) {
+			double req = solved[k];
+			if (req > flowHiBound) req = 999999.;
+			if (req < flowLoBound) req = -999999.;
+			int i = toSolve.get(k);
+			reqs[i] = (float) req;
+			cachedRequiredFlow.put(recs[i], reqs[i]);
+		}
+		return reqs;
+	}
+
+
 	public static boolean isNearlyInteger(double value, double epsilon) {
 	    return Math.abs(value - Math.round(value)) < epsilon;
 	}
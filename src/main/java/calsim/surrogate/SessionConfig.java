@@ -0,0 +1,159 @@
+package calsim.surrogate;
+
+/**
+ * Session options for a TensorFlow model, serialized to the ConfigProto bytes
+ * accepted by the TensorFlow Java loader. By default TensorFlow sizes both the
+ * intra-op and inter-op thread pools to the whole machine for every session,
+ * which oversubscribes cores when several surrogates or several CalSIM
+ * processes share a node. Unset options keep the TensorFlow default.
+ *
+ * <p>Only the handful of ConfigProto fields relevant to CPU inference are
+ * covered. Callers with the TensorFlow protobuf classes on their classpath can
+ * instead pass their own serialized ConfigProto to
+ * {@link TensorWrapper.Builder#configProto(byte[])}.</p>
+ *
+ * <pre>
+ * SessionConfig config = new SessionConfig()
+ *     .intraOpThreads(2)
+ *     .sharedInterOpPool("calsim", 2);
+ * </pre>
+ */
+public class SessionConfig {
+
+	/**
+	 * Graph optimizer level (OptimizerOptions.Level in TensorFlow)
+	 */
+	public enum OptimizerLevel {
+		/** Common subexpression elimination and constant folding (the TensorFlow default) */
+		L1(0),
+		/** No graph optimizations */
+		L0(-1);
+
+		final int protoValue;
+
+		OptimizerLevel(int protoValue) {
+			this.protoValue = protoValue;
+		}
+	}
+
+	// ConfigProto field numbers
+	private static final int INTRA_OP_PARALLELISM_THREADS = 2;
+	private static final int INTER_OP_PARALLELISM_THREADS = 5;
+	private static final int GRAPH_OPTIONS = 10;
+	private static final int SESSION_INTER_OP_THREAD_POOL = 12;
+	// GraphOptions.optimizer_options and OptimizerOptions.opt_level
+	private static final int OPTIMIZER_OPTIONS = 3;
+	private static final int OPT_LEVEL = 3;
+	// ThreadPoolOptionProto
+	private static final int NUM_THREADS = 1;
+	private static final int GLOBAL_NAME = 2;
+
+	private int intraOpThreads = 0;
+	private int interOpThreads = 0;
+	private OptimizerLevel optimizerLevel = null;
+	private String sharedPoolName = null;
+	private int sharedPoolThreads = 0;
+
+	/**
+	 * Sets the number of threads used to parallelize a single op
+	 *
+	 * @param nThreads number of threads, or 0 for the TensorFlow default
+	 */
+	public SessionConfig intraOpThreads(int nThreads) {
+		this.intraOpThreads = checkThreads(nThreads);
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads used to run independent ops concurrently. Ignored
+	 * if a shared inter-op pool is configured.
+	 *
+	 * @param nThreads number of threads, or 0 for the TensorFlow default
+	 */
+	public SessionConfig interOpThreads(int nThreads) {
+		this.interOpThreads = checkThreads(nThreads);
+		return this;
+	}
+
+	/**
+	 * Sets the graph optimizer level
+	 */
+	public SessionConfig optimizerLevel(OptimizerLevel level) {
+		this.optimizerLevel = level;
+		return this;
+	}
+
+	/**
+	 * Runs the inter-op work of the session on a process-wide thread pool. All
+	 * sessions configured with the same pool name share one pool, so the total
+	 * number of inter-op threads no longer grows with the number of models. The
+	 * pool is created by the first session that names it.
+	 *
+	 * @param name     global name of the pool
+	 * @param nThreads number of threads in the pool, or 0 for the TensorFlow
+	 *                 default
+	 */
+	public SessionConfig sharedInterOpPool(String name, int nThreads) {
+		if (name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("Shared thread pool needs a name");
+		}
+		this.sharedPoolName = name;
+		this.sharedPoolThreads = checkThreads(nThreads);
+		return this;
+	}
+
+	public int getIntraOpThreads() {
+		return intraOpThreads;
+	}
+
+	public int getInterOpThreads() {
+		return interOpThreads;
+	}
+
+	public OptimizerLevel getOptimizerLevel() {
+		return optimizerLevel;
+	}
+
+	public String getSharedPoolName() {
+		return sharedPoolName;
+	}
+
+	/**
+	 * Returns the options as a serialized ConfigProto
+	 */
+	public byte[] toConfigProto() {
+		ProtoWriter config = new ProtoWriter();
+		if (intraOpThreads > 0) {
+			config.varint(INTRA_OP_PARALLELISM_THREADS, intraOpThreads);
+		}
+		if (interOpThreads > 0) {
+			config.varint(INTER_OP_PARALLELISM_THREADS, interOpThreads);
+		}
+		if (optimizerLevel != null) {
+			ProtoWriter optimizer = new ProtoWriter().varint(OPT_LEVEL, optimizerLevel.protoValue);
+			config.message(GRAPH_OPTIONS, new ProtoWriter().message(OPTIMIZER_OPTIONS, optimizer));
+		}
+		if (sharedPoolName != null) {
+			ProtoWriter pool = new ProtoWriter();
+			if (sharedPoolThreads > 0) {
+				pool.varint(NUM_THREADS, sharedPoolThreads);
+			}
+			pool.string(GLOBAL_NAME, sharedPoolName);
+			config.message(SESSION_INTER_OP_THREAD_POOL, pool);
+		}
+		return config.toByteArray();
+	}
+
+	private static int checkThreads(int nThreads) {
+		if (nThreads < 0) {
+			throw new IllegalArgumentException("Number of threads must be non-negative: " + nThreads);
+		}
+		return nThreads;
+	}
+
+	@Override
+	public String toString() {
+		return "SessionConfig[intraOp=" + intraOpThreads + ", interOp=" + interOpThreads + ", optimizer="
+				+ optimizerLevel + ", sharedPool=" + sharedPoolName + "]";
+	}
+}
@@ -23,6 +23,58 @@ public interface Surrogate extends DailyToSurrogate {
 	 */
 	public float[][] estimate(ArrayList<double[][]> rawData, ArrayList<long[][]> rawDataInt);
 
+	/**
+	 * Run the ANN on a contiguous batch and return results. The default converts
+	 * to the list form; implementations that can consume the flat layout directly
+	 * should override this.
+	 *
+	 * @param batch float inputs in [feature][batch][lag] layout
+	 * @return Result of prediction. First dimension is the batch number and second
+	 *         is Tensor dimension of the output (e.g. station)
+	 */
+	public default float[][] estimate(SurrogateBatch batch) {
+		return estimate(batch.toList(), null);
+	}
+
+	/**
+	 * Run the ANN on a contiguous batch and pass the output to a consumer as a
+	 * flat buffer, avoiding the {@code float[][]} copy. The default evaluates
+	 * {@link #estimate(SurrogateBatch)} and flattens the result; implementations
+	 * that hold the output in a buffer should override this.
+	 *
+	 * @param batch    float inputs in [feature][batch][lag] layout
+	 * @param consumer receives nBatch rows of output, valid only during the call
+	 */
+	public default void estimate(SurrogateBatch batch, SurrogateOutputConsumer consumer) {
+		SurrogateOutputConsumer.acceptRows(estimate(batch), consumer);
+	}
+
+	/**
+	 * Returns true if the surrogate should be marched through consecutive days
+	 * with {@link #estimateStreaming(SurrogateBatch, int)}, consuming the daily
+	 * history once instead of once per day. Only surrogates fed the daily history
+	 * unchanged and oldest first (see {@link DailyToSurrogateDefault}) can stream.
+	 * The default is false.
+	 */
+	public default boolean supportsStreaming() {
+		return false;
+	}
+
+	/**
+	 * Evaluates nSteps consecutive days in one pass over the daily history.
+	 *
+	 * @param histories one row per batch member for each feature, holding the
+	 *                  surrogate input for the first day followed by the daily
+	 *                  value of each of the nSteps - 1 later days
+	 * @param nSteps    number of consecutive days to evaluate
+	 * @return Result of prediction with nBatch x nSteps rows, the days of each
+	 *         batch member contiguous, and one column per output
+	 * @throws UnsupportedOperationException if the surrogate does not stream
+	 */
+	public default float[][] estimateStreaming(SurrogateBatch histories, int nSteps) {
+		throw new UnsupportedOperationException("Streaming not implemented for surrogate " + identifier());
+	}
+
 	/**
 	 * Return a class string or file name that helps identify the surrogate
 	 * @return
@@ -34,6 +86,16 @@ public interface Surrogate extends DailyToSurrogate {
 	 * @return
 	 */
 	public default String getName() {return "None";}	
+
+	/**
+	 * True if other computes the same output from the same input, for instance
+	 * a separately constructed wrapper around the same model and output. Used to
+	 * decide whether one evaluation can serve several registrations. The default
+	 * is identity.
+	 */
+	public default boolean isEquivalent(Surrogate other) {
+		return other == this;
+	}
 	
 	
 	/**
@@ -49,6 +111,25 @@ public interface Surrogate extends DailyToSurrogate {
 		return getDailyToSurrogate().dailyToSurrogateInput(dailyData, currentIndex);
 	};
 
+	/**
+	 * Converts a run of days into surrogate inputs in a caller supplied buffer
+	 * using {@link #getDailyToSurrogate()}. This is what {@link SurrogateMonth}
+	 * calls, so a surrogate that customizes its inputs should override this
+	 * together with {@link #getInputLength()} rather than only
+	 * {@link #dailyToSurrogateInput(double[], int)}.
+	 */
+	public default void dailyToSurrogateInputs(double[] dailyData, int firstIndex, int nIndex, float[] out,
+			int outOffset) {
+		getDailyToSurrogate().dailyToSurrogateInputs(dailyData, firstIndex, nIndex, out, outOffset);
+	}
+
+	/**
+	 * Length of the surrogate input produced by {@link #getDailyToSurrogate()}
+	 */
+	public default int getInputLength() {
+		return getDailyToSurrogate().getInputLength();
+	}
+
     /**
      * Returns the input index corresponding to the given input name.
      * Concrete surrogate implementations should override this method.
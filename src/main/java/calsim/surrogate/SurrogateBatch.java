@@ -0,0 +1,334 @@
+package calsim.surrogate;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Contiguous batch of surrogate inputs. This is the flat counterpart of the
+ * {@code ArrayList<double[][]>} used elsewhere in the API, where the list
+ * enumerates features, the first array index is the batch member and the second
+ * is the lag (time) dimension.
+ *
+ * <p>All values are stored in one {@code float[]} with [feature][batch][lag]
+ * ordering. Features may have different lag lengths, so each feature owns a
+ * block starting at {@link #featureOffset(int)} within which element (batch,
+ * lag) is found at {@code batch * getLagLength(feature) + lag}. Each feature
+ * block is therefore laid out exactly as the row-major tensor of shape
+ * {nBatch, lagLength} that is fed to the ANN.</p>
+ *
+ * <p>A batch may also be a sliding window view of another batch, see
+ * {@link #slidingWindows(int)}. Its rows overlap in the backing array, so
+ * feature blocks are not contiguous and are read with
+ * {@link #copyFeature(int, FloatBuffer)} or {@link #rowOffset(int, int)}.</p>
+ *
+ * <p>Values are single precision because that is what the surrogates consume.
+ * Converting an {@code ArrayList<double[][]>} with {@link #fromList(List)}
+ * rounds to float once rather than at the end of every evaluation.</p>
+ */
+public class SurrogateBatch {
+
+	private final int nBatch;
+	private final int[] lagLength;
+	private final int[] offset;
+	private final float[] data;
+	// Batch members come in groups of windowSteps rows that start one element
+	// apart; consecutive groups start memberStride apart. A contiguous batch has
+	// windowSteps 1 and memberStride equal to the lag length.
+	private final int windowSteps;
+	private final int[] memberStride;
+
+	/**
+	 * Creates a zero filled batch
+	 *
+	 * @param nBatch    number of batch members
+	 * @param lagLength inner (lag or time) length of each feature
+	 */
+	public SurrogateBatch(int nBatch, int[] lagLength) {
+		this.nBatch = nBatch;
+		this.lagLength = lagLength.clone();
+		this.offset = new int[lagLength.length];
+		int total = 0;
+		for (int i = 0; i < lagLength.length; i++) {
+			offset[i] = total;
+			total += nBatch * lagLength[i];
+		}
+		this.data = new float[total];
+		this.windowSteps = 1;
+		this.memberStride = this.lagLength;
+	}
+
+	private SurrogateBatch(int nBatch, int[] lagLength, int[] offset, float[] data, int windowSteps,
+			int[] memberStride) {
+		this.nBatch = nBatch;
+		this.lagLength = lagLength;
+		this.offset = offset;
+		this.data = data;
+		this.windowSteps = windowSteps;
+		this.memberStride = memberStride;
+	}
+
+	/**
+	 * Returns a view in which each row of this batch, of length L+nSteps-1 for a
+	 * feature, is seen as nSteps overlapping rows of length L, the k-th starting
+	 * k elements into the row. The view has nBatch*nSteps members, the windows
+	 * of one original row adjacent, and shares the values of this batch rather
+	 * than copying them.
+	 *
+	 * <p>This is how a surrogate fed the plain daily history (see
+	 * {@link DailyToSurrogateDefault}) sees a month of days: the history of one
+	 * batch member is stored once instead of once per day.</p>
+	 *
+	 * @param nSteps number of windows per row
+	 * @throws IllegalArgumentException if a row is shorter than nSteps
+	 * @throws IllegalStateException    if this batch is itself a window view
+	 */
+	public SurrogateBatch slidingWindows(int nSteps) {
+		if (!isContiguous()) {
+			throw new IllegalStateException("Batch is already a sliding window view");
+		}
+		int[] windowLength = new int[lagLength.length];
+		for (int i = 0; i < lagLength.length; i++) {
+			windowLength[i] = lagLength[i] - nSteps + 1;
+			if (nSteps < 1 || windowLength[i] < 1) {
+				throw new IllegalArgumentException(
+						"Cannot take " + nSteps + " windows from rows of length " + lagLength[i]);
+			}
+		}
+		return new SurrogateBatch(nBatch * nSteps, windowLength, offset, data, nSteps, lagLength);
+	}
+
+	/**
+	 * Returns true if each feature block is stored contiguously with the layout
+	 * described in the class documentation, false for a sliding window view
+	 */
+	public boolean isContiguous() {
+		return windowSteps == 1;
+	}
+
+	/**
+	 * Returns this batch if it is contiguous, otherwise a contiguous copy
+	 */
+	public SurrogateBatch compact() {
+		if (isContiguous()) {
+			return this;
+		}
+		SurrogateBatch out = new SurrogateBatch(nBatch, lagLength);
+		for (int f = 0; f < lagLength.length; f++) {
+			copyFeature(f, out.data, out.offset[f]);
+		}
+		return out;
+	}
+
+	/**
+	 * Copies one feature block, laid out as the row-major tensor of shape
+	 * {nBatch, lagLength}, into dest starting at destPos
+	 */
+	public void copyFeature(int feature, float[] dest, int destPos) {
+		int len = lagLength[feature];
+		if (isContiguous()) {
+			System.arraycopy(data, offset[feature], dest, destPos, nBatch * len);
+			return;
+		}
+		for (int ib = 0; ib < nBatch; ib++) {
+			System.arraycopy(data, rowOffset(feature, ib), dest, destPos + ib * len, len);
+		}
+	}
+
+	/**
+	 * Puts one feature block, laid out as the row-major tensor of shape
+	 * {nBatch, lagLength}, into dest at its position
+	 */
+	public void copyFeature(int feature, FloatBuffer dest) {
+		int len = lagLength[feature];
+		if (isContiguous()) {
+			dest.put(data, offset[feature], nBatch * len);
+			return;
+		}
+		for (int ib = 0; ib < nBatch; ib++) {
+			dest.put(data, rowOffset(feature, ib), len);
+		}
+	}
+
+	/**
+	 * Stacks batches with the same lag lengths into one batch whose members are
+	 * those of the first batch, then the second and so on
+	 *
+	 * @throws IllegalArgumentException if the lag lengths differ
+	 */
+	public static SurrogateBatch concat(List<SurrogateBatch> batches) {
+		SurrogateBatch first = batches.get(0);
+		int total = 0;
+		List<SurrogateBatch> compacted = new ArrayList<SurrogateBatch>(batches.size());
+		for (SurrogateBatch b : batches) {
+			compacted.add(b.compact());
+			if (!Arrays.equals(first.lagLength, b.lagLength)) {
+				throw new IllegalArgumentException("Cannot concatenate batches with lag lengths "
+						+ Arrays.toString(first.lagLength) + " and " + Arrays.toString(b.lagLength));
+			}
+			total += b.nBatch;
+		}
+		SurrogateBatch out = new SurrogateBatch(total, first.lagLength);
+		for (int f = 0; f < first.lagLength.length; f++) {
+			int pos = out.offset[f];
+			for (SurrogateBatch b : compacted) {
+				int len = b.nBatch * b.lagLength[f];
+				System.arraycopy(b.data, b.offset[f], out.data, pos, len);
+				pos += len;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Creates a batch from the list representation used by
+	 * {@link Surrogate#estimate(ArrayList, ArrayList)}
+	 *
+	 * @param inputs one double[nBatch][nLag] per feature
+	 * @return batch holding the same values in single precision
+	 */
+	public static SurrogateBatch fromList(List<double[][]> inputs) {
+		int nFeature = inputs.size();
+		int nBatch = inputs.get(0).length;
+		int[] lags = new int[nFeature];
+		for (int i = 0; i < nFeature; i++) {
+			lags[i] = inputs.get(i)[0].length;
+		}
+		SurrogateBatch batch = new SurrogateBatch(nBatch, lags);
+		for (int i = 0; i < nFeature; i++) {
+			double[][] feature = inputs.get(i);
+			for (int ib = 0; ib < nBatch; ib++) {
+				batch.setRow(i, ib, feature[ib]);
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Converts back to the list representation
+	 *
+	 * @return one double[nBatch][nLag] per feature
+	 */
+	public ArrayList<double[][]> toList() {
+		ArrayList<double[][]> out = new ArrayList<double[][]>(lagLength.length);
+		for (int i = 0; i < lagLength.length; i++) {
+			double[][] feature = new double[nBatch][];
+			for (int ib = 0; ib < nBatch; ib++) {
+				feature[ib] = getRow(i, ib);
+			}
+			out.add(feature);
+		}
+		return out;
+	}
+
+	public int getNFeatures() {
+		return lagLength.length;
+	}
+
+	public int getNBatch() {
+		return nBatch;
+	}
+
+	/**
+	 * Returns the inner (lag) length of a feature
+	 */
+	public int getLagLength(int feature) {
+		return lagLength[feature];
+	}
+
+	/**
+	 * Returns the inner (lag) lengths of all features. The array is shared and
+	 * must not be modified.
+	 */
+	int[] lagLengths() {
+		return lagLength;
+	}
+
+	/**
+	 * Returns the backing array. Mutations are visible to the batch, and to any
+	 * sliding window view sharing it.
+	 */
+	public float[] getData() {
+		return data;
+	}
+
+	/**
+	 * Index in {@link #getData()} of the first element of a feature block
+	 */
+	public int featureOffset(int feature) {
+		return offset[feature];
+	}
+
+	/**
+	 * Index in {@link #getData()} of the first element of one batch member's row
+	 */
+	public int rowOffset(int feature, int batch) {
+		if (windowSteps == 1) {
+			return offset[feature] + batch * lagLength[feature];
+		}
+		return offset[feature] + (batch / windowSteps) * memberStride[feature] + batch % windowSteps;
+	}
+
+	public float get(int feature, int batch, int lag) {
+		return data[rowOffset(feature, batch) + lag];
+	}
+
+	public void set(int feature, int batch, int lag, float value) {
+		data[rowOffset(feature, batch) + lag] = value;
+	}
+
+	/**
+	 * Copies a row of doubles into one batch member of a feature
+	 *
+	 * @param feature feature index
+	 * @param batch   batch index
+	 * @param values  lag values, at least getLagLength(feature) long
+	 */
+	public void setRow(int feature, int batch, double[] values) {
+		int pos = rowOffset(feature, batch);
+		int len = lagLength[feature];
+		for (int j = 0; j < len; j++) {
+			data[pos + j] = (float) values[j];
+		}
+	}
+
+	/**
+	 * Returns a copy of one batch member of a feature, widened to double
+	 */
+	public double[] getRow(int feature, int batch) {
+		int pos = rowOffset(feature, batch);
+		int len = lagLength[feature];
+		double[] out = new double[len];
+		for (int j = 0; j < len; j++) {
+			out[j] = data[pos + j];
+		}
+		return out;
+	}
+
+	/**
+	 * Returns a view of one feature block with shape {nBatch, lagLength}, without
+	 * copying. The view's position is zero and its limit is the block length.
+	 * A sliding window batch has no such block, so a copy is returned instead.
+	 */
+	public FloatBuffer featureView(int feature) {
+		if (!isContiguous()) {
+			float[] block = new float[nBatch * lagLength[feature]];
+			copyFeature(feature, block, 0);
+			return FloatBuffer.wrap(block);
+		}
+		return FloatBuffer.wrap(data, offset[feature], nBatch * lagLength[feature]).slice();
+	}
+
+	/**
+	 * Returns the current period value (batch 0, lag 0) of every feature, which
+	 * is what {@link RunRecord} uses as a cache key
+	 */
+	public double[] latestFeatures() {
+		double[] out = new double[lagLength.length];
+		for (int i = 0; i < lagLength.length; i++) {
+			out[i] = data[offset[i]];
+		}
+		return out;
+	}
+}
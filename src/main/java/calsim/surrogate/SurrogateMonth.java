@@ -2,7 +2,9 @@ package calsim.surrogate;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 //import java.util.logging.*;
 
 
@@ -19,10 +21,86 @@ public class SurrogateMonth {
 		return agg;
 	}
 
+	/**
+	 * True if other produces the same daily output for the same monthly inputs
+	 * and differs at most in the monthly statistic, so that one evaluation can
+	 * serve both, see {@link #annMonth(ArrayList, int, int, Aggregator[])}.
+	 * Surrogates and disaggregators are compared by value, see
+	 * {@link Surrogate#isEquivalent(Surrogate)} and
+	 * {@link DisaggregateMonths#equals(Object)}, so separately constructed
+	 * registrations of the same model share.
+	 */
+	public boolean sharesDailyOutput(SurrogateMonth other) {
+		if (other == this) {
+			return true;
+		}
+		if (!daily.isEquivalent(other.daily) || !Arrays.equals(other.disagg, disagg)
+				|| other.assignments.size() != assignments.size()) {
+			return false;
+		}
+		for (int i = 0; i < assignments.size(); i++) {
+			ExogTimeSeriesAssignment a = assignments.get(i);
+			ExogTimeSeriesAssignment b = other.assignments.get(i);
+			if (!a.getFileName().equals(b.getFileName()) || !a.getFileColumn().equals(b.getFileColumn())
+					|| !a.getAnnInputName().equals(b.getAnnInputName())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private Surrogate daily;
     private List<ExogTimeSeriesAssignment> assignments;
     private DisaggregateMonths firstNonNullDisagg; // non-null used for length calculations
 
+    private static final int DISAGG_CACHE_SIZE = 32;
+    // Per feature, the last daily series disaggregated for each monthly history
+    private List<LRUCache<HistoryKey, DailyHistory>> disaggCache;
+    // Per feature, the disaggregator version the cached series were produced by
+    private int[] disaggVersion;
+
+    /**
+     * Month and monthly values of a feature apart from the current month
+     */
+    private static final class HistoryKey {
+    	final int year;
+    	final int month;
+    	final double[] history;
+
+    	HistoryKey(int year, int month, double[] dataRev) {
+    		this.year = year;
+    		this.month = month;
+    		this.history = Arrays.copyOfRange(dataRev, 1, dataRev.length);
+    	}
+
+    	@Override
+    	public int hashCode() {
+    		return 31 * (31 * year + month) + Arrays.hashCode(history);
+    	}
+
+    	@Override
+    	public boolean equals(Object obj) {
+    		if (!(obj instanceof HistoryKey)) {
+    			return false;
+    		}
+    		HistoryKey other = (HistoryKey) obj;
+    		return year == other.year && month == other.month && Arrays.equals(history, other.history);
+    	}
+    }
+
+    /**
+     * Daily series disaggregated in full from one monthly series
+     */
+    private static final class DailyHistory {
+    	final double[] monthly;
+    	final double[] daily;
+
+    	DailyHistory(double[] monthly, double[] daily) {
+    		this.monthly = monthly;
+    		this.daily = daily;
+    	}
+    }
+
     /**
      * Constructs a SurrogateMonth
      * All null entries in the assignments list are replaced by UNASSIGNED.
@@ -56,6 +134,11 @@ public class SurrogateMonth {
     	this.disagg = disagg;
     	this.daily = daily;
     	this.agg = agg;
+    	this.disaggCache = new ArrayList<LRUCache<HistoryKey, DailyHistory>>(disagg.length);
+    	for (int ivar = 0; ivar < disagg.length; ivar++) {
+    		disaggCache.add(new LRUCache<HistoryKey, DailyHistory>(DISAGG_CACHE_SIZE));
+    	}
+    	this.disaggVersion = new int[disagg.length];
 
         // If the entire assignments list is null, use default assignments.
         if (assignments == null) {
@@ -358,6 +441,31 @@ public class SurrogateMonth {
 	 *         by number of stations (output features) predicted
 	 */
 	public double[][] annMonth(ArrayList<double[][]> monthlyInputs, int year, int month) {
+		return annMonth(monthlyInputs, year, month, Aggregator.current(agg));
+	}
+
+	/**
+	 * Same as {@link #annMonth(ArrayList, int, int)} but reduces the daily output
+	 * with the given aggregator rather than the shared settings of
+	 * {@link #getAgg()}, so calls with different parameters may run concurrently
+	 *
+	 * @param aggregator statistic and parameters of the monthly reduction
+	 */
+	public double[][] annMonth(ArrayList<double[][]> monthlyInputs, int year, int month, Aggregator aggregator) {
+		return annMonth(monthlyInputs, year, month, new Aggregator[] { aggregator })[0];
+	}
+
+	/**
+	 * Evaluates the surrogate once and reduces the same daily output with each of
+	 * several aggregators, for instance the monthly mean and the 14 day maximum
+	 * of one location. Several NTH_SMALLEST aggregators also share one selection
+	 * of their ranks.
+	 *
+	 * @param aggregators statistics to compute
+	 * @return one [batch][station] array per aggregator, in the same order
+	 */
+	public double[][][] annMonth(ArrayList<double[][]> monthlyInputs, int year, int month,
+			Aggregator[] aggregators) {
         
 		ArrayList<double[][]> dailyInputs = new ArrayList<double[][]>();
 		int nvar = monthlyInputs.size();
@@ -369,17 +477,164 @@ public class SurrogateMonth {
 		// reversed
 		// but will be put forward in time
 		for (int ivar = 0; ivar < nvar; ivar++) {
-			double[][] newInput = new double[nbatch][];
+			double[][] newInput;
+			if (isExogenous(ivar)){
+				newInput = new double[nbatch][];
+				loadExogenous(newInput,ivar,year,month,nday);
+			}else {
+				newInput = disaggregate(ivar, year, month, monthlyInputs.get(ivar));
+			}
+			dailyInputs.add(newInput);			
+		}
+
+		return annMonthDaily(dailyInputs, nbatch, year, month, aggregators);
+	}
+
+	/**
+	 * Complete application of the ANN or other surrogate to monthly inputs held in
+	 * a contiguous batch. Equivalent to
+	 * {@link #annMonth(ArrayList, int, int)} with the batch in list form.
+	 * 
+	 * @param monthlyInputs monthly inputs with one lag entry per month in the history
+	 * @param year
+	 * @param month
+	 * @return 2D Array of monthly aggregated results with dimensions of batch size
+	 *         by number of stations (output features) predicted
+	 */
+	public double[][] annMonth(SurrogateBatch monthlyInputs, int year, int month) {
+		return annMonth(monthlyInputs, year, month, Aggregator.current(agg));
+	}
+
+	/**
+	 * Same as {@link #annMonth(SurrogateBatch, int, int)} with an explicit
+	 * aggregator, see {@link #annMonth(ArrayList, int, int, Aggregator)}
+	 */
+	public double[][] annMonth(SurrogateBatch monthlyInputs, int year, int month, Aggregator aggregator) {
+		return annMonth(monthlyInputs, year, month, new Aggregator[] { aggregator })[0];
+	}
+
+	/**
+	 * Same as {@link #annMonth(ArrayList, int, int, Aggregator[])} with the batch
+	 * held in a SurrogateBatch
+	 */
+	public double[][][] annMonth(SurrogateBatch monthlyInputs, int year, int month, Aggregator[] aggregators) {
+		ArrayList<double[][]> dailyInputs = new ArrayList<double[][]>();
+		int nvar = monthlyInputs.getNFeatures();
+		int nbatch = monthlyInputs.getNBatch();
+		int nday = this.disagg[0].getNDay(year, month);
+
+		for (int ivar = 0; ivar < nvar; ivar++) {
+			double[][] newInput;
 			if (isExogenous(ivar)){
+				newInput = new double[nbatch][];
 				loadExogenous(newInput,ivar,year,month,nday);
 			}else {
+				double[][] monthly = new double[nbatch][];
 				for (int jbatch = 0; jbatch < nbatch; jbatch++) {
-					newInput[jbatch] = disagg[ivar].apply(year, month, monthlyInputs.get(ivar)[jbatch]);
+					monthly[jbatch] = monthlyInputs.getRow(ivar, jbatch);
 				}
+				newInput = disaggregate(ivar, year, month, monthly);
 			}
-			dailyInputs.add(newInput);			
+			dailyInputs.add(newInput);
 		}
+		return annMonthDaily(dailyInputs, nbatch, year, month, aggregators);
+	}
 
+	/**
+	 * Disaggregates every batch member of one feature to daily. Solvers and
+	 * grids re-evaluate the same month with only the current month of a few
+	 * inputs changed, so the daily series are cached per feature, keyed by the
+	 * month and the earlier monthly values. A row whose history is cached is
+	 * copied if its current month matches too, or else derived from the cached
+	 * series when the disaggregator supports
+	 * {@link DisaggregateMonths#updateCurrentMonth updating the current month}.
+	 * The remaining rows are disaggregated together with one applyBatch call.
+	 * The cache of a feature is cleared when the parameters of its disaggregator
+	 * change.
+	 * 
+	 * @param monthly one reverse chronological monthly series per batch member
+	 * @return daily series, one row per batch member
+	 */
+	private double[][] disaggregate(int ivar, int year, int month, double[][] monthly) {
+		DisaggregateMonths d = disagg[ivar];
+		int nbatch = monthly.length;
+		double[][] daily = new double[nbatch][d.getOutputLength(year, month)];
+		LRUCache<HistoryKey, DailyHistory> cache = disaggCache.get(ivar);
+		HistoryKey[] keys = new HistoryKey[nbatch];
+		// Rows to disaggregate in full, at most one per history, and rows that can
+		// be derived from those once they are done
+		List<Integer> full = new ArrayList<Integer>();
+		List<Integer> deferred = new ArrayList<Integer>();
+		Map<HistoryKey, Integer> fullByKey = new HashMap<HistoryKey, Integer>();
+		int version = d.getVersion();
+		synchronized (cache) {
+			if (disaggVersion[ivar] != version) {
+				cache.clear();
+				disaggVersion[ivar] = version;
+			}
+			for (int ib = 0; ib < nbatch; ib++) {
+				keys[ib] = new HistoryKey(year, month, monthly[ib]);
+				if (fromCache(d, cache.get(keys[ib]), year, month, monthly[ib], daily[ib])) {
+					continue;
+				}
+				if (fullByKey.containsKey(keys[ib])) {
+					deferred.add(ib);
+				} else {
+					fullByKey.put(keys[ib], ib);
+					full.add(ib);
+				}
+			}
+		}
+		if (!full.isEmpty()) {
+			double[][] rows = new double[full.size()][];
+			double[][] out = new double[full.size()][];
+			for (int k = 0; k < full.size(); k++) {
+				rows[k] = monthly[full.get(k)];
+				out[k] = daily[full.get(k)];
+			}
+			d.applyBatch(year, month, rows, out);
+			synchronized (cache) {
+				// Not cached if the parameters changed while disaggregating
+				if (disaggVersion[ivar] == version && d.getVersion() == version) {
+					for (int ib : full) {
+						cache.put(keys[ib], new DailyHistory(monthly[ib].clone(), daily[ib].clone()));
+					}
+				}
+			}
+		}
+		for (int ib : deferred) {
+			int source = fullByKey.get(keys[ib]);
+			DailyHistory base = new DailyHistory(monthly[source], daily[source]);
+			if (!fromCache(d, base, year, month, monthly[ib], daily[ib])) {
+				double[] row = d.apply(year, month, monthly[ib]);
+				System.arraycopy(row, 0, daily[ib], 0, row.length);
+			}
+		}
+		return daily;
+	}
+
+	/**
+	 * Fills out from a cached series with the same history, returning false if
+	 * there is none or the disaggregator cannot update it
+	 */
+	private static boolean fromCache(DisaggregateMonths d, DailyHistory base, int year, int month, double[] dataRev,
+			double[] out) {
+		if (base == null) {
+			return false;
+		}
+		if (base.monthly[0] == dataRev[0]) {
+			System.arraycopy(base.daily, 0, out, 0, base.daily.length);
+			return true;
+		}
+		return d.updateCurrentMonth(year, month, base.monthly, base.daily, dataRev, out);
+	}
+
+	/**
+	 * Marches the surrogate through the month on already disaggregated daily
+	 * inputs and reduces the daily output to the monthly statistic
+	 */
+	private double[][][] annMonthDaily(ArrayList<double[][]> dailyInputs, int nbatch, int year, int month,
+			Aggregator[] aggregators) {
 		//System.out.println("\n\n**********************\nDump "+nbatch);
 		//DataDumper dump = new DataDumper();
 	    //dump.dumpInputs(dailyInputs);
@@ -388,30 +643,48 @@ public class SurrogateMonth {
 		int indexStart = disagg[0].offsetFirstMonth(year, month);
 
 		
-		// Slide window on the daily inputs and generate daily output
-		// The indexes in the output ArrayList represent stations or output locations
-		// The first dimension of the double[][] represent the original input batches
-		// The second index of the double[][], which will be collapsed in the next step,
-		// represent days within the output where indexStart again represents the first of
-		// the month
-		ArrayList<double[][]> dailyOutputs = timeStep(dailyInputs, indexStart, year, month);
-		
-		// Process the output
-		int nLoc = dailyOutputs.size(); // Number of output locations from ANN
-		// daysIn Month should match the second double[nbatch][daysInMonth] Not sure why we recalculate
+		// Slide window on the daily inputs and generate daily output, then
+		// perform the requested summary statistic that recovers a monthly value.
+		// The output buffer has one row per original batch member and day, with
+		// the days of a batch member contiguous, and one column per station. It
+		// is read once, in order, and each value is fed to a running aggregator
+		// for its (batch member, station) so the daily series are never stored.
+		int daysStep = MonthCalendar.lengthOfMonth(year, month);
 		// when we aggregate with something like a monthly average, this dimension will be reduced away
 		int daysInMonth = numberOfDays(month, year); 
-		double[][] monthlyOut = new double[nbatch][nLoc];
-
-		//System.out.println("annMonth dims " + year + " "+month + " nLoc="+nLoc+" nbatch="+nbatch+" ");
-		// Perform requested summary statistic that recovers a monthly value
-		for (int iLoc = 0; iLoc < nLoc; iLoc++) {
-			//System.out.println("iLoc="+iLoc+" "+" nbatch="+nbatch);
+		// With several aggregators each daily value is fed to all of them in the
+		// same pass
+		int nAgg = aggregators.length;
+		double[][][] monthlyOut = new double[nAgg][][];
+		evaluateMonth(dailyInputs, indexStart, daysStep, (out, nRow, nLoc) -> {
+			AggregateMonths.Accumulator[][] acc = new AggregateMonths.Accumulator[nAgg][nLoc];
+			for (int iAgg = 0; iAgg < nAgg; iAgg++) {
+				monthlyOut[iAgg] = new double[nbatch][nLoc];
+			}
+			int pos = out.position();
 			for (int ibatch = 0; ibatch < nbatch; ibatch++) {
-				monthlyOut[ibatch][iLoc] = agg.aggregate(dailyOutputs.get(iLoc)[ibatch], indexStart, 1, daysInMonth);
+				for (int iLoc = 0; iLoc < nLoc; iLoc++) {
+					AggregateMonths.Accumulator[] forLoc = Aggregator.accumulators(aggregators, indexStart, 1,
+							daysInMonth);
+					for (int iAgg = 0; iAgg < nAgg; iAgg++) {
+						acc[iAgg][iLoc] = forLoc[iAgg];
+					}
+				}
+				for (int jdate = 0; jdate < daysStep; jdate++) {
+					for (int iLoc = 0; iLoc < nLoc; iLoc++) {
+						double value = out.get(pos++);
+						for (int iAgg = 0; iAgg < nAgg; iAgg++) {
+							acc[iAgg][iLoc].add(value);
+						}
+					}
+				}
+				for (int iAgg = 0; iAgg < nAgg; iAgg++) {
+					for (int iLoc = 0; iLoc < nLoc; iLoc++) {
+						monthlyOut[iAgg][ibatch][iLoc] = acc[iAgg][iLoc].result();
+					}
+				}
 			}
-		}
-
+		});
 		return monthlyOut;
 	}
 
@@ -433,8 +706,8 @@ public class SurrogateMonth {
 	 *   <li>This method selects a window from the history starting at {@code startDayIndex} and spanning the number 
 	 *       of days in the month, so that the new batch size becomes: <b>nBigBatch = nbatch * daysInMonth</b>.
 	 *   <li>Each row in the new repackaged input (the "big input") is generated by calling
-	 *       {@code daily.dailyToSurrogateInput()} on the original input for that batch and the appropriate offset.
-	 *   <li>The repackaged data (an {@code ArrayList<double[][]>} with each element of dimensions 
+	 *       {@code dailyToSurrogateInputs()} of the surrogate on the original input for that batch and the appropriate offset.
+	 *   <li>The repackaged data (a {@link SurrogateBatch} in which each feature has dimensions 
 	 *       <b>nBigBatch x ?</b> where "?" is the ANN input length) is passed to {@code daily.estimate()}, which 
 	 *       returns ANN predictions as a {@code float[][]} with dimensions:
 	 *       <ul>
@@ -447,6 +720,10 @@ public class SurrogateMonth {
 	 *             where the outputs for each original batch are arranged contiguously by day.
 	 *       </ul>
 	 * </ol>
+	 * If the surrogate {@link Surrogate#supportsStreaming() supports streaming} the
+	 * expanded batch is not built. Instead each original batch member is passed once,
+	 * as its first-day input followed by the remaining days of the month, to
+	 * {@link Surrogate#estimateStreaming(SurrogateBatch, int)}.
 	 *
 	 * @param dailyInputs an {@code ArrayList<double[][]>} where each element represents a feature with dimensions:
 	 *                    nbatch x nhist. The data should cover multiple days, and the first index in the time dimension
@@ -460,13 +737,68 @@ public class SurrogateMonth {
 	 *         daily outputs.
 	 */	
 	public ArrayList<double[][]> timeStep(ArrayList<double[][]> dailyInputs, int startDayIndex, int year, int month) {
-		int daysInMonth = disagg[0].daysMonth(year, month)[0];
+		int daysInMonth = MonthCalendar.lengthOfMonth(year, month);
 		int nbatch = dailyInputs.get(0).length; // TODO safety check
+
+		// For dailyOuputs
+		// ArrayList dim of dailyOutputs is over output stations
+		// Then the double[][] dims are original batch size (before it got multiplied by num days) 
+		// and days of the month
+		ArrayList<double[][]> dailyOutputs = new ArrayList<double[][]>();
+		evaluateMonth(dailyInputs, startDayIndex, daysInMonth, (out, nRow, nLoc) -> {
+			int base = out.position();
+			for (int iLoc = 0; iLoc < nLoc; iLoc++) {
+				double[][] dailyOut = new double[nbatch][daysInMonth];
+				for (int ibatch = 0; ibatch < nbatch; ibatch++) {
+					for (int jdate = 0; jdate < daysInMonth; jdate++) {
+						dailyOut[ibatch][jdate] = out.get(base + (ibatch * daysInMonth + jdate) * nLoc + iLoc);
+					}
+				}
+				dailyOutputs.add(dailyOut);
+			}
+		});
+		return dailyOutputs;
+	}
+
+	/**
+	 * Evaluates the surrogate for every day of the month and passes the output,
+	 * dimensioned nBigBatch x nOutput where nOutput is number of stations
+	 * predicted, to the consumer. Surrogates that stream consume the history
+	 * once per batch member and produce the same layout. Surrogates fed the
+	 * plain forward daily history get a sliding window view of that history.
+	 */
+	private void evaluateMonth(ArrayList<double[][]> dailyInputs, int startDayIndex, int daysInMonth,
+			SurrogateOutputConsumer consumer) {
+		if (daily.supportsStreaming()) {
+			SurrogateOutputConsumer.acceptRows(
+					daily.estimateStreaming(streamingInputs(dailyInputs, startDayIndex, daysInMonth), daysInMonth),
+					consumer);
+		} else if (isPassThrough(daily.getDailyToSurrogate())) {
+			// The input for each day is a window of the daily history, so the
+			// history is stored once per batch member and viewed day by day
+			SurrogateBatch histories = streamingInputs(dailyInputs, startDayIndex, daysInMonth);
+			daily.estimate(histories.slidingWindows(daysInMonth), consumer);
+		} else {
+			daily.estimate(expandedInputs(dailyInputs, startDayIndex, daysInMonth), consumer);
+		}
+	}
+
+	/**
+	 * True if the surrogate input for a day is the daily history ending that day,
+	 * oldest first, so that the inputs of consecutive days are overlapping windows
+	 */
+	private static boolean isPassThrough(DailyToSurrogate dayToANN) {
+		return dayToANN instanceof DailyToSurrogateDefault && !((DailyToSurrogateDefault) dayToANN).isReverse();
+	}
+
+	/**
+	 * Repackages the daily history into one surrogate input row per batch member
+	 * and day of the month, the days of each batch member contiguous
+	 */
+	private SurrogateBatch expandedInputs(ArrayList<double[][]> dailyInputs, int startDayIndex, int daysInMonth) {
+		int nbatch = dailyInputs.get(0).length;
 		int nvar = dailyInputs.size();
-		int stopIndex = startDayIndex + daysInMonth;
-		
-		
-		
+
 		// The advancing window of days of the month will be handled in TensorFlow
 		// by including each  step as a separate batch index.
 		// From this point on the batch size will
@@ -476,49 +808,53 @@ public class SurrogateMonth {
 		// There is also time structure in the second index.
 		// This is the point where we transform the daily history into
 		// any other averages or aggregations specific to the the surrogate
-		ArrayList<double[][]> expandedDaily = new ArrayList<double[][]>();
 		int nBigBatch = nbatch * daysInMonth; // The new larger batch size
+		// The expanded inputs are written straight into one contiguous batch. The
+		// rows of the days of one original batch member are adjacent, which is
+		// the layout dailyToSurrogateInputs() produces for a run of days.
+		int[] lagLength = new int[nvar];
+		Arrays.fill(lagLength, daily.getInputLength());
+		SurrogateBatch expandedDaily = new SurrogateBatch(nBigBatch, lagLength);
+		float[] data = expandedDaily.getData();
 
 		for (int ivar = 0; ivar < nvar; ivar++) {
 			// dims: original nbatch size doesn't include time marching
 			double[][] inputs = dailyInputs.get(ivar); 
-			// dims: bigInput has batch with variations and also time marching 
-			double[][] bigInput = new double[nBigBatch][];
-			int iBatchBig = 0;
+			// dims: expanded batch has variations and also time marching 
 			for (int ibatch = 0; ibatch < nbatch; ibatch++){
-				for (int ioff = startDayIndex; ioff < stopIndex; ioff++) {
-					bigInput[iBatchBig] = daily.dailyToSurrogateInput(inputs[ibatch], ioff);
-					iBatchBig++;
-				}
+				daily.dailyToSurrogateInputs(inputs[ibatch], startDayIndex, daysInMonth, data,
+						expandedDaily.rowOffset(ivar, ibatch * daysInMonth));
 			}
-			expandedDaily.add(bigInput);
 		}
-		//System.out.println("\n\n**********************\nDump Big"+nBigBatch);
-        //DataDumper dumper = new DataDumper();
-        //dumper.dumpInputs(expandedDaily);
-
-        
-		// out is dimensioned nBigBatch x nOutput where nOutput is number of stations
-		// predicted
-		float[][] out = daily.estimate(expandedDaily, null);
-		
-		// For dailyOuputs
-		// ArrayList dim of dailyOutputs is over output stations
-		// Then the double[][] dims are original batch size (before it got multiplied by num days) 
-		// and days of the month
-		ArrayList<double[][]> dailyOutputs = new ArrayList<double[][]>();
+		return expandedDaily;
+	}
 
-		int nLoc = out[0].length;     // number of output stations in ANN
-		for (int iLoc = 0; iLoc < nLoc; iLoc++) {
-			double[][] dailyOut = new double[nbatch][daysInMonth];
+	/**
+	 * Packages the daily history for a streaming surrogate: one row per batch
+	 * member holding the surrogate input for the first day of the month followed
+	 * by the daily values of the remaining days. For a pass-through input this is
+	 * also the history from which {@link SurrogateBatch#slidingWindows(int)}
+	 * takes each day's input.
+	 */
+	private SurrogateBatch streamingInputs(ArrayList<double[][]> dailyInputs, int startDayIndex, int daysInMonth) {
+		int nbatch = dailyInputs.get(0).length;
+		int nvar = dailyInputs.size();
+		int nFirst = daily.getInputLength();
+		int[] lagLength = new int[nvar];
+		Arrays.fill(lagLength, nFirst + daysInMonth - 1);
+		SurrogateBatch histories = new SurrogateBatch(nbatch, lagLength);
+		float[] data = histories.getData();
+		for (int ivar = 0; ivar < nvar; ivar++) {
+			double[][] inputs = dailyInputs.get(ivar);
 			for (int ibatch = 0; ibatch < nbatch; ibatch++) {
-				for (int jdate = 0; jdate < daysInMonth; jdate++) {
-					dailyOut[ibatch][jdate] = (double) out[ibatch * daysInMonth + jdate][iLoc]; // TODO make double?
+				int pos = histories.rowOffset(ivar, ibatch);
+				daily.dailyToSurrogateInputs(inputs[ibatch], startDayIndex, 1, data, pos);
+				for (int iday = 1; iday < daysInMonth; iday++) {
+					data[pos + nFirst + iday - 1] = (float) inputs[ibatch][startDayIndex + iday];
 				}
 			}
-			dailyOutputs.add(dailyOut);
 		}
-		return dailyOutputs;
+		return histories;
 	}
 
 	public Surrogate getDailySurrogate() {
@@ -555,20 +891,7 @@ public class SurrogateMonth {
     }	
     
 	public int numberOfDays(int month, int year){
-		int days;
-		if (month==1 || month==3 || month==5 || month==7 
-				||month==8 || month==10 ||month==12){
-			days=31;
-		}else if (month==4|| month==6 || month==9 || month==11){ 
-			days=30;
-		}else {
-			if (isLeapYear(year)){
-				days=29;
-			}else{
-				days=28;
-			}
-		}
-		return days;
+		return MonthCalendar.lengthOfMonth(year, month);
 	}
 	
 	public static boolean isLeapYear(int year){
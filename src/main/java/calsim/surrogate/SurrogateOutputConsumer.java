@@ -0,0 +1,41 @@
+package calsim.surrogate;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Receives the output of a surrogate evaluation without it being copied into a
+ * {@code float[][]}. The output is a flat row-major view with one row per batch
+ * member and nOut values per row, so the value for row i and output j is
+ * {@code output.get(i * nOut + j)}.
+ *
+ * <p>The buffer belongs to the surrogate and is only valid for the duration of
+ * the call; consumers must read what they need before returning and must not
+ * keep a reference to it.</p>
+ *
+ * @see Surrogate#estimate(SurrogateBatch, SurrogateOutputConsumer)
+ */
+@FunctionalInterface
+public interface SurrogateOutputConsumer {
+
+	/**
+	 * @param output row-major output, positioned at its first value
+	 * @param nRow   number of rows (batch members)
+	 * @param nOut   number of outputs per row
+	 */
+	void accept(FloatBuffer output, int nRow, int nOut);
+
+	/**
+	 * Passes output held as rows to a consumer, for surrogates that only produce
+	 * {@code float[][]}
+	 */
+	static void acceptRows(float[][] rows, SurrogateOutputConsumer consumer) {
+		int nRow = rows.length;
+		int nOut = nRow == 0 ? 0 : rows[0].length;
+		FloatBuffer flat = FloatBuffer.allocate(nRow * nOut);
+		for (float[] row : rows) {
+			flat.put(row);
+		}
+		flat.flip();
+		consumer.accept(flat, nRow, nOut);
+	}
+}
@@ -0,0 +1,265 @@
+package calsim.surrogate;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of direct buffers and output arrays used by {@link TensorWrapper}, keyed
+ * by the shape of the batch. CalSIM evaluates the same few shapes thousands of
+ * times per run (1 x 31 for a single month, 5 x 31 for the finite difference
+ * gradient, 12 x 31 for the feasibility grid), so after the first call for each
+ * shape the buffers are simply refilled.
+ *
+ * <p>The pool is bounded by a byte budget. Least recently used shapes are
+ * evicted once the budget is exceeded and a shape that by itself is larger than
+ * the budget is served from a transient slot that is not retained. The pool is
+ * not thread safe; each caller should own its pool. TensorWrapper keeps one per
+ * concurrent call.</p>
+ */
+public class TensorBufferPool {
+
+	/** Default limit on pooled memory, 64MB */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+
+	/**
+	 * Buffers for one batch shape. The input buffer is large enough for the
+	 * longest feature and is refilled feature by feature. Output storage is sized
+	 * lazily because the output width is only known after the first run.
+	 */
+	public static final class Slot {
+		final int nBatch;
+		final int[] featureLen;
+		final int maxLen;
+		final long[][] shapes;
+		final FloatBuffer input;
+		FloatBuffer output;
+		float[][] outArray;
+		long bytes;
+		boolean pooled;
+
+		Slot(int nBatch, int[] featureLen) {
+			this.nBatch = nBatch;
+			this.featureLen = featureLen;
+			this.shapes = new long[featureLen.length][];
+			int maxLen = 0;
+			for (int i = 0; i < featureLen.length; i++) {
+				shapes[i] = new long[] { nBatch, featureLen[i] };
+				maxLen = Math.max(maxLen, featureLen[i]);
+			}
+			this.maxLen = maxLen;
+			this.input = allocate(nBatch * maxLen);
+			this.bytes = (long) nBatch * maxLen * Float.BYTES;
+		}
+
+		/**
+		 * Returns the input buffer, cleared and ready to be filled
+		 */
+		public FloatBuffer input() {
+			input.clear();
+			return input;
+		}
+
+		/**
+		 * Returns the tensor shape {nBatch, len} of feature i
+		 */
+		public long[] shape(int i) {
+			return shapes[i];
+		}
+
+		/**
+		 * Returns the direct output buffer with room for nBatch x nOut values,
+		 * cleared and ready to be written by the tensor
+		 */
+		public FloatBuffer output(int nOut) {
+			if (output == null || output.capacity() != nBatch * nOut) {
+				output = allocate(nBatch * nOut);
+			}
+			output.clear();
+			return output;
+		}
+
+		/**
+		 * Returns the pooled nBatch x nOut output array. Contents are overwritten by
+		 * the next call with the same shape.
+		 */
+		public float[][] outArray(int nOut) {
+			if (outArray == null || outArray[0].length != nOut) {
+				outArray = new float[nBatch][nOut];
+			}
+			return outArray;
+		}
+
+		boolean matches(int nBatch, List<double[][]> features, int nFeatures) {
+			if (this.nBatch != nBatch || featureLen.length != nFeatures) {
+				return false;
+			}
+			for (int i = 0; i < nFeatures; i++) {
+				if (featureLen[i] != features.get(i)[0].length) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class ShapeKey {
+		final int nBatch;
+		final int[] featureLen;
+
+		ShapeKey(int nBatch, int[] featureLen) {
+			this.nBatch = nBatch;
+			this.featureLen = featureLen;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * nBatch + Arrays.hashCode(featureLen);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			ShapeKey other = (ShapeKey) obj;
+			return nBatch == other.nBatch && Arrays.equals(featureLen, other.featureLen);
+		}
+	}
+
+	private final long maxBytes;
+	private long pooledBytes = 0;
+	private final LinkedHashMap<ShapeKey, Slot> slots = new LinkedHashMap<>(16, 0.75f, true);
+	private Slot last;   // fast path for repeated calls with the same pooled shape
+
+	/**
+	 * Creates a pool with the default byte budget
+	 */
+	public TensorBufferPool() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Creates a pool that retains at most maxBytes of buffers
+	 * @param maxBytes memory budget for pooled buffers and arrays
+	 */
+	public TensorBufferPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the slot for a batch shape, creating it if necessary.
+	 *
+	 * @param features  float inputs, one double[nBatch][len] per feature
+	 * @param nFeatures number of features to consider
+	 * @return slot whose buffers fit the shape
+	 */
+	public Slot acquire(List<double[][]> features, int nFeatures) {
+		int nBatch = features.get(0).length;
+		if (last != null && last.matches(nBatch, features, nFeatures)) {
+			return last;
+		}
+		int[] featureLen = new int[nFeatures];
+		for (int i = 0; i < nFeatures; i++) {
+			featureLen[i] = features.get(i)[0].length;
+		}
+		return acquire(nBatch, featureLen);
+	}
+
+	/**
+	 * Returns the slot for a batch shape, creating it if necessary.
+	 *
+	 * @param nBatch     batch size
+	 * @param featureLen inner length of each feature
+	 * @return slot whose buffers fit the shape
+	 */
+	public Slot acquire(int nBatch, int[] featureLen) {
+		if (last != null && last.nBatch == nBatch && Arrays.equals(last.featureLen, featureLen)) {
+			return last;
+		}
+		ShapeKey key = new ShapeKey(nBatch, featureLen.clone());
+		Slot slot = slots.get(key);
+		if (slot == null) {
+			slot = new Slot(nBatch, key.featureLen);
+			if (slot.bytes <= maxBytes) {
+				slots.put(key, slot);
+				slot.pooled = true;
+				pooledBytes += slot.bytes;
+				trim();
+			}
+		}
+		if (slot.pooled) {
+			last = slot;
+		}
+		return slot;
+	}
+
+	/**
+	 * Accounts for output storage that was sized after the slot was acquired and
+	 * evicts least recently used shapes until the pool fits its budget again.
+	 *
+	 * @param slot the slot that was just used
+	 * @param nOut output width
+	 */
+	public void recordOutput(Slot slot, int nOut) {
+		long newBytes = (long) slot.nBatch * (slot.maxLen + 2 * nOut) * Float.BYTES;
+		if (slot.pooled && slot.bytes != newBytes) {
+			pooledBytes += newBytes - slot.bytes;
+			slot.bytes = newBytes;
+			trim();
+		}
+	}
+
+	private void trim() {
+		Iterator<Map.Entry<ShapeKey, Slot>> it = slots.entrySet().iterator();
+		while (pooledBytes > maxBytes && it.hasNext()) {
+			Slot eldest = it.next().getValue();
+			eldest.pooled = false;
+			pooledBytes -= eldest.bytes;
+			it.remove();
+			if (eldest == last) {
+				last = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the memory budget of the pool
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the number of bytes currently retained by the pool
+	 */
+	public long getPooledBytes() {
+		return pooledBytes;
+	}
+
+	/**
+	 * Returns the number of distinct shapes currently retained
+	 */
+	public int size() {
+		return slots.size();
+	}
+
+	/**
+	 * Drops all pooled buffers so they can be reclaimed
+	 */
+	public void clear() {
+		slots.clear();
+		pooledBytes = 0;
+		last = null;
+	}
+
+	static FloatBuffer allocate(int nFloat) {
+		return ByteBuffer.allocateDirect(nFloat * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+}
@@ -3,7 +3,14 @@ package calsim.surrogate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.nio.FloatBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.tensorflow.SavedModelBundle;
 import org.tensorflow.Session;
 import org.tensorflow.Tensor;
@@ -12,19 +19,26 @@ import org.tensorflow.Session.Runner;
 import org.tensorflow.Session;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 
 /**
  * Generic wrapper for a TensorFlow saved model. Some assumptions on features
  * and dimensionality.
+ *
+ * <p>estimate() may be called from several threads at once. The TensorFlow
+ * session is shared; each call creates its own runner and borrows a call
+ * context holding its feed tensors and buffer pool. At most maxConcurrentCalls contexts are
+ * created, lazily; further callers wait for one to be returned. Scenario
+ * threads can therefore share one loaded model instead of loading a copy each.</p>
+ *
+ * <p>A wrapper created by the {@link Builder} can load its model on a background
+ * thread and run warm-up batches so that graph initialization is not paid by
+ * the first real call. estimate() blocks only if loading has not finished.</p>
  */
 public class TensorWrapper implements Surrogate {
 
-	SavedModelBundle model;
-	Session s;
-	Runner runner;
+	volatile SavedModelBundle model;
+	volatile Session s;
 	String[] tensorNames;
 	String[] tensorNamesInt;
 	String outName;
@@ -33,6 +47,36 @@ public class TensorWrapper implements Surrogate {
 	int nFeaturesInt;
 	DailyToSurrogate dayToANN;
 	Tensor<Long> inputInt;
+	TensorBufferPool pool = new TensorBufferPool();
+	volatile boolean reuseOutput = false;
+	volatile OutputPostProcessor postProcessor = OutputPostProcessor.DEFAULT;
+
+	/**
+	 * Scratch state for one estimate() call. Contexts are handed out one caller
+	 * at a time so nothing in them needs synchronization.
+	 */
+	private static final class CallContext {
+		final TensorBufferPool pool;
+		final Tensor<?>[] feeds;
+
+		CallContext(TensorBufferPool pool, int nFeatures) {
+			this.pool = pool;
+			this.feeds = new Tensor<?>[nFeatures];
+		}
+	}
+
+	private final int maxConcurrentCalls;
+	private final ArrayBlockingQueue<CallContext> idleContexts;
+	private final AtomicInteger nContexts = new AtomicInteger();
+
+	// Completes once the model is loaded and warmed up
+	private final CompletableFuture<Void> loading;
+
+	private static final ExecutorService LOADER = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "calsurrogate-model-loader");
+		t.setDaemon(true);
+		return t;
+	});
 
 	String fpath;
 
@@ -52,16 +96,203 @@ public class TensorWrapper implements Surrogate {
 	public TensorWrapper(String fpath, String[] tensorNames, 
 			String[] tensorNamesInt, String outName,
 			DailyToSurrogate dayToSurrogate) {
-		model = SavedModelBundle.load(fpath, "serve");
-		s = model.session();
-		this.tensorNames = tensorNames;
-		this.tensorNamesInt = tensorNamesInt;
+		this(builder(fpath).inputs(tensorNames, tensorNamesInt).output(outName).dailyToSurrogate(dayToSurrogate));
+	}
+
+	/**
+	 * Create a TensorWrapper as configured by a {@link Builder}
+	 */
+	private TensorWrapper(Builder b) {
+		if (b.maxConcurrentCalls < 1) {
+			throw new IllegalArgumentException("maxConcurrentCalls must be at least 1: " + b.maxConcurrentCalls);
+		}
+		this.tensorNames = b.tensorNames;
+		this.tensorNamesInt = b.tensorNamesInt;
 		nFeatures = tensorNames.length;
 		nFeaturesInt = tensorNamesInt.length;
-		this.outName = outName;
-		this.dayToANN = dayToSurrogate;
-		this.fpath = fpath;
+		this.outName = b.outName;
+		this.dayToANN = b.dayToSurrogate;
+		this.fpath = b.fpath;
+		this.maxConcurrentCalls = b.maxConcurrentCalls;
+		this.idleContexts = new ArrayBlockingQueue<CallContext>(maxConcurrentCalls);
+		if (b.warmUpLags != null && b.warmUpLags.length != nFeatures) {
+			throw new IllegalArgumentException("Warm-up shape has " + b.warmUpLags.length + " features but model "
+					+ fpath + " has " + nFeatures);
+		}
+
+		final byte[] configProto = b.configProto;
+		final int[] warmUpLags = b.warmUpLags;
+		final int[] warmUpBatchSizes = b.warmUpBatchSizes;
+		Runnable load = () -> {
+			// Wrappers on the same model and configuration share one loaded copy
+			model = ModelRegistry.getInstance().acquire(fpath, configProto);
+			s = model.session();
+			if (warmUpLags != null) {
+				try {
+					for (int nBatch : warmUpBatchSizes) {
+						estimateLoaded(new SurrogateBatch(nBatch, warmUpLags), null);
+					}
+				} catch (RuntimeException e) {
+					s = null;
+					ModelRegistry.getInstance().release(model);
+					throw e;
+				}
+			}
+		};
+		if (b.background) {
+			loading = CompletableFuture.runAsync(load, LOADER);
+		} else {
+			load.run();
+			loading = CompletableFuture.completedFuture(null);
+		}
+	}
+
+	/**
+	 * Returns true once the model is loaded and warmed up
+	 */
+	public boolean isLoaded() {
+		return loading.isDone() && !loading.isCompletedExceptionally();
+	}
+
+	/**
+	 * Waits for background loading to finish
+	 * 
+	 * @throws RuntimeException the exception that made loading fail
+	 */
+	public void awaitLoaded() {
+		try {
+			loading.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Could not load model " + fpath, cause);
+		}
+	}
+
+	/**
+	 * Returns a builder for a TensorWrapper on the saved model in fpath
+	 */
+	public static Builder builder(String fpath) {
+		return new Builder(fpath);
+	}
+
+	/**
+	 * Builder for TensorWrapper that, unlike the constructor, allows the session
+	 * to be configured, for instance to cap the threads used by each model:
+	 * 
+	 * <pre>
+	 * TensorWrapper wrap = TensorWrapper.builder(fpath)
+	 *     .inputs(tensorNames, tensorNamesInt)
+	 *     .output(outName)
+	 *     .dailyToSurrogate(dayToANN)
+	 *     .sessionConfig(new SessionConfig().intraOpThreads(2).interOpThreads(1))
+	 *     .build();
+	 * </pre>
+	 */
+	public static class Builder {
+		private final String fpath;
+		private String[] tensorNames;
+		private String[] tensorNamesInt = new String[0];
+		private String outName;
+		private DailyToSurrogate dayToSurrogate;
+		private byte[] configProto;
+		private int maxConcurrentCalls = Runtime.getRuntime().availableProcessors();
+		private boolean background = false;
+		private int[] warmUpLags;
+		private int[] warmUpBatchSizes;
+
+		private Builder(String fpath) {
+			this.fpath = fpath;
+		}
+
+		/**
+		 * Sets the names of the float and integer valued inputs
+		 */
+		public Builder inputs(String[] tensorNames, String[] tensorNamesInt) {
+			this.tensorNames = tensorNames;
+			this.tensorNamesInt = tensorNamesInt;
+			return this;
+		}
+
+		/**
+		 * Sets the name of the output to be queried
+		 */
+		public Builder output(String outName) {
+			this.outName = outName;
+			return this;
+		}
+
+		public Builder dailyToSurrogate(DailyToSurrogate dayToSurrogate) {
+			this.dayToSurrogate = dayToSurrogate;
+			return this;
+		}
+
+		/**
+		 * Sets the session options
+		 */
+		public Builder sessionConfig(SessionConfig config) {
+			this.configProto = config == null ? null : config.toConfigProto();
+			return this;
+		}
+
+		/**
+		 * Sets the session options as a serialized tensorflow.ConfigProto, for
+		 * callers that build it with the TensorFlow protobuf classes
+		 */
+		public Builder configProto(byte[] configProto) {
+			this.configProto = configProto;
+			return this;
+		}
+
+		/**
+		 * Sets the number of estimate() calls that may run at once. Each concurrent
+		 * call needs its own buffers, so this also bounds the memory used for them.
+		 * Defaults to the number of available processors.
+		 */
+		public Builder maxConcurrentCalls(int maxConcurrentCalls) {
+			this.maxConcurrentCalls = maxConcurrentCalls;
+			return this;
+		}
+
+		/**
+		 * Loads the model on a background thread so that build() returns at once.
+		 * The first call that needs the model waits for loading to finish, and any
+		 * error in loading is thrown from that call.
+		 */
+		public Builder loadInBackground(boolean background) {
+			this.background = background;
+			return this;
+		}
 
+		/**
+		 * Runs the model once on a batch of zeros for each batch size after
+		 * loading, so graph initialization happens before the first real call.
+		 * Representative sizes are the days in a month times the number of
+		 * scenarios evaluated together, e.g. 31 and 5 x 31.
+		 * 
+		 * @param lagLengths input length of each float feature
+		 * @param batchSizes batch sizes to run
+		 */
+		public Builder warmUp(int[] lagLengths, int... batchSizes) {
+			this.warmUpLags = lagLengths.clone();
+			this.warmUpBatchSizes = batchSizes.clone();
+			return this;
+		}
+
+		/**
+		 * Loads the model, or starts loading it if
+		 * {@link #loadInBackground(boolean)} was requested
+		 * 
+		 * @throws IllegalStateException if the inputs or output were not set
+		 */
+		public TensorWrapper build() {
+			if (tensorNames == null || outName == null) {
+				throw new IllegalStateException("Inputs and output must be set before building TensorWrapper for " + fpath);
+			}
+			return new TensorWrapper(this);
+		}
 	}
 
 	/**
@@ -78,60 +309,220 @@ public class TensorWrapper implements Surrogate {
 	@Override
 	public float[][] estimate(ArrayList<double[][]> rawData, ArrayList<long[][]> rawDataInt) {		
 
-		runner = this.s.runner();
-
-		int nBatch = 0;
-		// Store tensors for cleanup
-		List<Tensor<?>> tensorsToClose = new ArrayList<>();
-
-		nBatch = rawData.get(0).length;
+		awaitLoaded();
+		CallContext ctx = acquireContext();
+		try {
+			Runner runner = this.s.runner();
+			int nBatch = rawData.get(0).length;
+			// Buffers are pooled by batch shape, so repeated calls allocate nothing
+			TensorBufferPool.Slot slot = ctx.pool.acquire(rawData, nFeatures);
 
-		for (int i = 0; i < nFeatures; i++) {
-			int featureLen = rawData.get(i)[0].length;   // Number of times
-			float[][] featureData = new float[nBatch][featureLen];
-			for (int k = 0; k < nBatch; k++) {
-				for (int j = 0; j < featureLen; j++) {
-					featureData[k][j] = (float) rawData.get(i)[k][j];
+			for (int i = 0; i < nFeatures; i++) {
+				double[][] featureData = rawData.get(i);
+				int featureLen = featureData[0].length;   // Number of times
+				// Write the feature row-major straight into the direct buffer. Tensor.create
+				// copies the buffer, so the same buffer can be refilled for the next feature.
+				FloatBuffer buffer = slot.input();
+				for (int k = 0; k < nBatch; k++) {
+					double[] row = featureData[k];
+					for (int j = 0; j < featureLen; j++) {
+						buffer.put((float) row[j]);
+					}
 				}
-			}
+				buffer.flip();
 
-			Tensor<Float> input = Tensor.create(featureData,Float.class);
-			runner.feed(tensorNames[i], input);
-			tensorsToClose.add(input); 
+				ctx.feeds[i] = Tensor.create(slot.shape(i), buffer);
+				runner.feed(tensorNames[i], ctx.feeds[i]);
+			}
+			return fetchOutput(runner, ctx, slot, nBatch, null);
+		} finally {
+			releaseContext(ctx);
 		}
+	}
+
+	/**
+	 * Run the ANN on a contiguous batch. Each feature block of the batch already
+	 * has the row-major layout of its input tensor, so it is bulk copied into the
+	 * direct buffer without per-element conversion. The rows of a sliding window
+	 * batch are copied one at a time straight from the shared history.
+	 * 
+	 * @param batch float inputs in [feature][batch][lag] layout
+	 * @return Result of prediction. First dimension is the batch number and second
+	 *         is Tensor dimension of the output (e.g. station)
+	 */
+	@Override
+	public float[][] estimate(SurrogateBatch batch) {
+		awaitLoaded();
+		return estimateLoaded(batch, null);
+	}
 
-		List<Tensor<?>> results = runner.fetch(outName).run();
+	/**
+	 * Run the ANN on a contiguous batch and hand the post-processed output
+	 * tensor, copied once into a pooled direct buffer, to the consumer
+	 * 
+	 * @param batch    float inputs in [feature][batch][lag] layout
+	 * @param consumer receives nBatch rows of output, valid only during the call
+	 */
+	@Override
+	public void estimate(SurrogateBatch batch, SurrogateOutputConsumer consumer) {
+		awaitLoaded();
+		estimateLoaded(batch, consumer);
+	}
 
+	/**
+	 * Evaluates a batch, returning the output or, if consumer is not null,
+	 * passing it to the consumer and returning null
+	 */
+	private float[][] estimateLoaded(SurrogateBatch batch, SurrogateOutputConsumer consumer) {
+		CallContext ctx = acquireContext();
+		try {
+			Runner runner = this.s.runner();
+			int nBatch = batch.getNBatch();
+			TensorBufferPool.Slot slot = ctx.pool.acquire(nBatch, batch.lagLengths());
+
+			for (int i = 0; i < nFeatures; i++) {
+				FloatBuffer buffer = slot.input();
+				batch.copyFeature(i, buffer);
+				buffer.flip();
+
+				ctx.feeds[i] = Tensor.create(slot.shape(i), buffer);
+				runner.feed(tensorNames[i], ctx.feeds[i]);
+			}
+			return fetchOutput(runner, ctx, slot, nBatch, consumer);
+		} finally {
+			releaseContext(ctx);
+		}
+	}
+
+	/**
+	 * Runs the session with the inputs already fed, copies the output tensor
+	 * into the direct buffer of the slot and post-processes it there. The
+	 * result is then given to the consumer or, if that is null, returned as
+	 * rows.
+	 */
+	private float[][] fetchOutput(Runner runner, CallContext ctx, TensorBufferPool.Slot slot, int nBatch,
+			SurrogateOutputConsumer consumer) {
+		List<Tensor<?>> results = null;
 		try {
+			results = runner.fetch(outName).run();
+
 			Tensor<?> outputTensor = results.get(0);
 			long[] outShape = outputTensor.shape();
 			int nOut = (int) outShape[1];
-			float[][] out = new float[nBatch][nOut];
-			
-			outputTensor.copyTo(out);
-
-			//TODO This hardwires flooring to zero. Should eliminate and put this in TensorFlow
-			double xLowBound = 0.1; //Small enough to be a floor for X2 and for EC
-			for (int i = 0; i < out.length; i++) {
-				for (int j = 0; j < out[i].length; j++) {
-					out[i][j] = (float) Math.max(xLowBound, out[i][j]);
-				}
-			}	
+			FloatBuffer outBuffer = slot.output(nOut);
+			outputTensor.writeTo(outBuffer);
+			outBuffer.flip();
+			postProcessor.apply(outBuffer, nBatch, nOut);
+			ctx.pool.recordOutput(slot, nOut);
+			if (consumer != null) {
+				consumer.accept(outBuffer, nBatch, nOut);
+				return null;
+			}
+
+			float[][] out = reuseOutput ? slot.outArray(nOut) : new float[nBatch][nOut];
+			for (int i = 0; i < nBatch; i++) {
+				outBuffer.get(out[i]);
+			}
 			return out;
 		} finally {
-			// **Close and clear all stored tensors**
-			for (Tensor<?> t : tensorsToClose) {
-				t.close();
+			if (results != null) {
+				for (Tensor<?> result : results) {
+					result.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Borrows an idle call context, creating one if fewer than maxConcurrentCalls
+	 * exist, otherwise waiting for another caller to return one
+	 */
+	private CallContext acquireContext() {
+		CallContext ctx = idleContexts.poll();
+		if (ctx != null) {
+			return ctx;
+		}
+		while (true) {
+			int n = nContexts.get();
+			if (n >= maxConcurrentCalls) {
+				break;
+			}
+			if (nContexts.compareAndSet(n, n + 1)) {
+				// The first context uses the pool exposed by getBufferPool()
+				TensorBufferPool ctxPool = n == 0 ? pool : new TensorBufferPool(pool.getMaxBytes());
+				return new CallContext(ctxPool, nFeatures);
 			}
-			tensorsToClose.clear();  // Clear the list after closing
+		}
+		try {
+			return idleContexts.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting to evaluate " + fpath, e);
+		}
+	}
 
-			for (Tensor<?> result : results) {
-				result.close();
+	/**
+	 * Closes the feed tensors of a finished call and returns its context
+	 */
+	private void releaseContext(CallContext ctx) {
+		for (int i = 0; i < nFeatures; i++) {
+			if (ctx.feeds[i] != null) {
+				ctx.feeds[i].close();
+				ctx.feeds[i] = null;
 			}
 		}
+		idleContexts.offer(ctx);
 	}
 
+	/**
+	 * Controls whether estimate() returns a pooled output array. When true the
+	 * array returned is owned by the wrapper and is overwritten by the next call
+	 * with the same batch shape, so callers must consume or copy it first. With
+	 * concurrent callers the array may be reused by another thread, so this is
+	 * only safe for single threaded use. The
+	 * default is false, in which case a fresh array is returned on every call.
+	 * 
+	 * @param reuseOutput true to return pooled output arrays
+	 */
+	public void setReuseOutput(boolean reuseOutput) {
+		this.reuseOutput = reuseOutput;
+	}
 
+	/**
+	 * Sets the transformation applied to the raw ANN output. The default raises
+	 * values below {@link OutputPostProcessor#DEFAULT_FLOOR} to that floor, small
+	 * enough to be a floor for X2 and for EC.
+	 * 
+	 * @param postProcessor transformation, or {@link OutputPostProcessor#NONE}
+	 */
+	public void setPostProcessor(OutputPostProcessor postProcessor) {
+		this.postProcessor = postProcessor;
+	}
+
+	public OutputPostProcessor getPostProcessor() {
+		return postProcessor;
+	}
+
+	/**
+	 * Replaces the buffer pool, for instance to change its memory budget.
+	 * Concurrent callers each get a pool with the same budget. Must not be called
+	 * while estimate() is running.
+	 * 
+	 * @param pool pool to be used by subsequent calls to estimate()
+	 */
+	public void setBufferPool(TensorBufferPool pool) {
+		this.pool = pool;
+		// All contexts are idle, so they can be dropped and recreated with the new pool
+		idleContexts.clear();
+		nContexts.set(0);
+	}
+
+	/**
+	 * Returns the pool of input and output buffers used by the first caller
+	 */
+	public TensorBufferPool getBufferPool() {
+		return pool;
+	}
 
 	public String getName() {
 		return this.fpath;
@@ -144,6 +535,25 @@ public class TensorWrapper implements Surrogate {
 
 	public String identifier() {return this.fpath;}
 
+	/**
+	 * True for another TensorWrapper on the same saved model, inputs, output,
+	 * daily input packaging and post-processor
+	 */
+	@Override
+	public boolean isEquivalent(Surrogate other) {
+		if (other == this) {
+			return true;
+		}
+		if (!(other instanceof TensorWrapper)) {
+			return false;
+		}
+		TensorWrapper o = (TensorWrapper) other;
+		return ModelRegistry.canonicalPath(fpath).equals(ModelRegistry.canonicalPath(o.fpath))
+				&& outName.equals(o.outName) && Arrays.equals(tensorNames, o.tensorNames)
+				&& Arrays.equals(tensorNamesInt, o.tensorNamesInt) && Objects.equals(dayToANN, o.dayToANN)
+				&& postProcessor == o.postProcessor;
+	}
+
 	/**
 	 * Returns the index of the input matching the given name among the float inputs.
 	 * 
@@ -171,35 +581,29 @@ public class TensorWrapper implements Surrogate {
 		return this.nFeatures;
 	}
 
-	private static float[] flatten(float[][] array) {
-	    int rows = array.length;
-	    int cols = array[0].length;
-	    float[] flatArray = new float[rows * cols];
-
-	    int index = 0;
-	    for (int i = 0; i < rows; i++) {
-	        for (int j = 0; j < cols; j++) {
-	            flatArray[index++] = array[i][j];
-	        }
-	    }
-	    return flatArray;
-	}	
-	
-	private static ByteBuffer toByteBuffer(float[] data) {
-	    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length * Float.BYTES);
-	    buffer.order(ByteOrder.nativeOrder());
-	    for (float value : data) {
-	        buffer.putFloat(value);
-	    }
-	    buffer.rewind();
-	    return buffer;
-	}
-
-	
+	/**
+	 * Returns the maximum number of estimate() calls that run at once
+	 */
+	public int getMaxConcurrentCalls() {
+		return maxConcurrentCalls;
+	}
+
+	/**
+	 * Releases the model, which is closed once no other wrapper uses it
+	 */
 	public void close() {
+		try {
+			awaitLoaded();
+		} catch (RuntimeException e) {
+			// Nothing was acquired
+			return;
+		}
 		if (s != null) {
-			s.close();
 			s = null;
+			ModelRegistry.getInstance().release(model);
 		}
+		idleContexts.clear();
+		nContexts.set(0);
+		pool.clear();
 	}
 }
@@ -2,6 +2,8 @@ package calsim.surrogate;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.Random;
+
 import org.junit.jupiter.api.Test;
 
 class AggregateMonthsTest {
@@ -46,7 +48,148 @@ class AggregateMonthsTest {
 		    System.out.println(agg.calsimCode);
 		}
 	}
-	
-	
 
+	@Test
+	void testAccumulatorMatchesAggregate() {
+		Random random = new Random(11);
+		int[] monthLengths = { 28, 29, 30, 31 };
+		AggregateMonths[] streamed = { AggregateMonths.MONTHLY_MEAN, AggregateMonths.MONTHLY_MAX,
+				AggregateMonths.MONTHLY_MAX_14D_TRUNCATED, AggregateMonths.AVE_LAST_7D,
+				AggregateMonths.NTH_SMALLEST, AggregateMonths.COUNTBELOW };
+		AggregateMonths.NTH_SMALLEST.setN(5);
+		AggregateMonths.COUNTBELOW.setThreshold(500.);
+		for (int nday : monthLengths) {
+			double[] daily = new double[nday];
+			for (int i = 0; i < nday; i++) {
+				daily[i] = Math.round(1000. * random.nextDouble());
+			}
+			for (AggregateMonths agg : streamed) {
+				AggregateMonths.Accumulator acc = agg.accumulator(0, 1, nday);
+				for (double value : daily) {
+					acc.add(value);
+				}
+				assertEquals(agg.aggregate(daily, 0, 1, nday), acc.result(), 0., agg + " " + nday);
+			}
+		}
+		// Too few values fail the same way on both paths
+		double[] three = { 3., 1., 2. };
+		AggregateMonths.Accumulator short3 = AggregateMonths.NTH_SMALLEST.accumulator(0, 1, 3);
+		for (double value : three) {
+			short3.add(value);
+		}
+		IllegalArgumentException viaAccumulator = assertThrows(IllegalArgumentException.class, () -> short3.result());
+		IllegalArgumentException direct = assertThrows(IllegalArgumentException.class,
+				() -> AggregateMonths.NTH_SMALLEST.aggregate(three, 0, 1, 3));
+		assertEquals(direct.getMessage(), viaAccumulator.getMessage());
+		AggregateMonths.NTH_SMALLEST.setN(0);
+		assertEquals(-9999., AggregateMonths.NTH_SMALLEST.accumulator(0, 1, 31).result());
+		AggregateMonths.COUNTBELOW.setThreshold(0.);
+	}
+
+	@Test
+	void testRunningWindow() {
+		Random random = new Random(5);
+		double[][] daily = new double[4][160];
+		for (double[] row : daily) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] = 100. * random.nextDouble() - 20.;
+			}
+		}
+		for (int window : new int[] { 1, 7, 14, 30 }) {
+			double[] batch = new double[daily.length];
+			RunningWindow.maxMean(daily, 121, 152, window, batch);
+			for (int ib = 0; ib < daily.length; ib++) {
+				double max = -9999;
+				for (int i = 121; i < 152; i++) {
+					double ave = 0.;
+					for (int j = i - window + 1; j <= i; j++) {
+						ave += daily[ib][j];
+					}
+					max = Math.max(max, ave / window);
+				}
+				assertEquals(max, batch[ib], 1e-10);
+			}
+		}
+		assertEquals(RunningWindow.NO_WINDOW, RunningWindow.maxMean(daily[0], 20, 20, 14));
+
+		double[] out = new double[daily.length];
+		AggregateMonths.MONTHLY_MAX_14D_TRUNCATED.aggregateBatch(daily, 0, 1, 31, out);
+		double[] out14 = new double[daily.length];
+		AggregateMonths.MONTHLY_MAX_14D.aggregateBatch(daily, 121, 1, 31, out14);
+		for (int ib = 0; ib < daily.length; ib++) {
+			assertEquals(AggregateMonths.MONTHLY_MAX_14D_TRUNCATED.aggregate(daily[ib], 0, 1, 31), out[ib]);
+			assertEquals(AggregateMonths.MONTHLY_MAX_14D.aggregate(daily[ib], 121, 1, 31), out14[ib]);
+		}
+	}
+
+	@Test
+	void testOrderStatistics() {
+		Random random = new Random(3);
+		for (int trial = 0; trial < 50; trial++) {
+			int length = 1 + random.nextInt(40);
+			double[] values = new double[length + 5];
+			for (int i = 0; i < values.length; i++) {
+				// Few distinct values so that ties are common
+				values[i] = trial % 2 == 0 ? random.nextInt(5) : random.nextGaussian();
+			}
+			double[] original = values.clone();
+			double[] sorted = java.util.Arrays.copyOf(values, length);
+			java.util.Arrays.sort(sorted);
+			for (int n = 1; n <= length; n++) {
+				assertEquals(sorted[n - 1], OrderStatistics.nthSmallest(values, length, n));
+			}
+			int[] ns = { length, 1, (length + 1) / 2, 1 };
+			double[] several = OrderStatistics.nthSmallest(values, length, ns);
+			for (int k = 0; k < ns.length; k++) {
+				assertEquals(sorted[ns[k] - 1], several[k]);
+			}
+			assertArrayEquals(original, values);
+		}
+		assertThrows(IllegalArgumentException.class, () -> OrderStatistics.nthSmallest(new double[3], 3, 4));
+		assertThrows(IllegalArgumentException.class,
+				() -> OrderStatistics.nthSmallest(new double[3], 3, new int[] { 1, 4 }));
+	}
+
+	@Test
+	void testAggregator() {
+		assertSame(Aggregator.of(AggregateMonths.COUNTBELOW, 0, 86.), Aggregator.of(99, 0, 86.));
+		assertNotSame(Aggregator.of(99, 0, 86.), Aggregator.of(99, 0, 87.));
+		// Parameters are dropped for statistics that have none
+		assertSame(Aggregator.of(AggregateMonths.MONTHLY_MEAN), Aggregator.of(1, 5, 2.));
+		assertThrows(IllegalArgumentException.class, () -> Aggregator.of(12345, 0, 0.));
+
+		double[] data = { 62., 66., 72., 85., 91., 90., 88., 84., 86., 91. };
+		AggregateMonths.COUNTBELOW.setThreshold(0.);
+		assertEquals(6., Aggregator.of(99, 0, 86.).aggregate(data, 0, 1, 10));
+		assertEquals(85., Aggregator.of(77, 5, 0.).aggregate(data, 0, 1, 10));
+		assertEquals(0., AggregateMonths.COUNTBELOW.threshold);
+
+		// Evaluations with different thresholds running at once do not interfere
+		int nThread = 8;
+		double[][] results = new double[nThread][];
+		Thread[] threads = new Thread[nThread];
+		for (int it = 0; it < nThread; it++) {
+			final int ithread = it;
+			threads[it] = new Thread(() -> {
+				Aggregator count = Aggregator.of(AggregateMonths.COUNTBELOW, 0, 60. + 4. * ithread);
+				double[] out = new double[2000];
+				double[][] rows = new double[out.length][];
+				java.util.Arrays.fill(rows, data);
+				count.aggregateBatch(rows, 0, 1, 10, out);
+				results[ithread] = out;
+			});
+			threads[it].start();
+		}
+		for (int it = 0; it < nThread; it++) {
+			try {
+				threads[it].join();
+			} catch (InterruptedException e) {
+				fail(e);
+			}
+			double expected = AggregateMonths.COUNTBELOW.aggregate(data, 0, 1, 10, 0, 60. + 4. * it);
+			for (double value : results[it]) {
+				assertEquals(expected, value);
+			}
+		}
+	}
 }
@@ -0,0 +1,117 @@
+package calsim.surrogate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class BatchingSurrogateTest {
+
+	/**
+	 * MockSurrogate that counts the calls and rows it evaluates
+	 */
+	static class CountingSurrogate extends MockSurrogate {
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicInteger rows = new AtomicInteger();
+
+		CountingSurrogate(int lenHist) {
+			super(lenHist);
+		}
+
+		@Override
+		public float[][] estimate(ArrayList<double[][]> rawData, ArrayList<long[][]> rawDataInt) {
+			calls.incrementAndGet();
+			rows.addAndGet(rawData.get(0).length);
+			return super.estimate(rawData, rawDataInt);
+		}
+	}
+
+	private static SurrogateBatch request(int nBatch, int seed) {
+		SurrogateBatch batch = new SurrogateBatch(nBatch, new int[] { 4, 4, 4, 4, 4 });
+		for (int ib = 0; ib < nBatch; ib++) {
+			for (int j = 0; j < 4; j++) {
+				batch.set(0, ib, j, 6000.f + 1000.f * seed + 100.f * ib + j);
+				batch.set(1, ib, j, 2000.f + 500.f * ib);
+				batch.set(2, ib, j, 1.f);
+			}
+		}
+		return batch;
+	}
+
+	@Test
+	void testConcat() {
+		SurrogateBatch a = request(2, 0);
+		SurrogateBatch b = request(3, 1);
+		List<SurrogateBatch> parts = new ArrayList<SurrogateBatch>();
+		parts.add(a);
+		parts.add(b);
+		SurrogateBatch both = SurrogateBatch.concat(parts);
+		assertEquals(5, both.getNBatch());
+		assertEquals(a.get(0, 1, 3), both.get(0, 1, 3));
+		assertEquals(b.get(0, 2, 1), both.get(0, 4, 1));
+		assertEquals(b.get(1, 0, 0), both.get(1, 2, 0));
+		parts.add(new SurrogateBatch(1, new int[] { 4, 4, 4, 4, 3 }));
+		assertThrows(IllegalArgumentException.class, () -> SurrogateBatch.concat(parts));
+	}
+
+	@Test
+	void testCoalescesConcurrentRequests() {
+		CountingSurrogate mock = new CountingSurrogate(4);
+		int nRequest = 12;
+		List<float[][]> expected = new ArrayList<float[][]>();
+		for (int i = 0; i < nRequest; i++) {
+			expected.add(mock.estimate(request(1 + i % 3, i)));
+		}
+		mock.calls.set(0);
+
+		// Long delay so that all requests queued below end up in one batch
+		try (BatchingSurrogate batching = new BatchingSurrogate(mock, 1000, 500_000)) {
+			assertEquals(mock.getNFeatures(), batching.getNFeatures());
+			List<CompletableFuture<float[][]>> futures = new ArrayList<CompletableFuture<float[][]>>();
+			for (int i = 0; i < nRequest; i++) {
+				futures.add(batching.estimateAsync(request(1 + i % 3, i)));
+			}
+			for (int i = 0; i < nRequest; i++) {
+				float[][] actual = futures.get(i).join();
+				assertEquals(expected.get(i).length, actual.length);
+				for (int ib = 0; ib < actual.length; ib++) {
+					assertArrayEquals(expected.get(i)[ib], actual[ib]);
+				}
+			}
+			assertTrue(mock.calls.get() < nRequest, "calls: " + mock.calls.get());
+		}
+	}
+
+	@Test
+	void testSizeLimitAndClose() {
+		CountingSurrogate mock = new CountingSurrogate(4);
+		BatchingSurrogate batching = new BatchingSurrogate(mock, 2, 1000);
+		// Each request reaches the size limit by itself so none waits for the delay
+		float[][] out = batching.estimate(request(2, 0));
+		assertEquals(2, out.length);
+		batching.close();
+		assertThrows(IllegalStateException.class, () -> batching.estimate(request(1, 0)));
+	}
+
+	@Test
+	void testErrorDoesNotStopDispatcher() {
+		CountingSurrogate mock = new CountingSurrogate(4) {
+			@Override
+			public float[][] estimate(ArrayList<double[][]> rawData, ArrayList<long[][]> rawDataInt) {
+				if (calls.getAndIncrement() == 0) {
+					throw new AssertionError("first call fails");
+				}
+				return super.estimate(rawData, rawDataInt);
+			}
+		};
+		try (BatchingSurrogate batching = new BatchingSurrogate(mock, 1, 1000)) {
+			assertThrows(AssertionError.class, () -> batching.estimate(request(1, 0)));
+			// The dispatcher survived and serves the next request
+			assertEquals(1, batching.estimate(request(1, 0)).length);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package calsim.surrogate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ConcurrentLRUCacheTest {
+
+	@Test
+	void testEvictionAndStats() {
+		// One stripe behaves exactly as an LRU cache
+		ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<Integer, String>(3, 1);
+		cache.put(1, "a");
+		cache.put(2, "b");
+		cache.put(3, "c");
+		assertEquals("a", cache.get(1)); // 1 is now most recently used
+		cache.put(4, "d");
+		assertNull(cache.get(2));
+		assertEquals(3, cache.size());
+		assertTrue(cache.containsKey(1));
+		assertTrue(cache.containsKey(3));
+		assertTrue(cache.containsKey(4));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(3, cache.entrySet().size());
+		assertThrows(NullPointerException.class, () -> cache.put(5, null));
+		cache.clear();
+		assertEquals(0, cache.size());
+		cache.resetStats();
+		assertEquals(0, cache.getHitCount());
+
+		ConcurrentLRUCache<Integer, Integer> striped = new ConcurrentLRUCache<Integer, Integer>(1000);
+		assertEquals(16, striped.getNStripes());
+		for (int i = 0; i < 5000; i++) {
+			striped.put(i, i);
+		}
+		assertEquals(1000, striped.size());
+		assertEquals(5000 - striped.size(), striped.getEvictionCount());
+		assertEquals(Integer.valueOf(4999), striped.get(4999));
+
+		// Sizes that do not divide evenly still add up to maxSize, and a cache
+		// smaller than the stripe count asked for uses fewer stripes
+		ConcurrentLRUCache<Integer, Integer> uneven = new ConcurrentLRUCache<Integer, Integer>(21, 4);
+		ConcurrentLRUCache<Integer, Integer> tiny = new ConcurrentLRUCache<Integer, Integer>(3, 16);
+		assertEquals(2, tiny.getNStripes());
+		for (int i = 0; i < 500; i++) {
+			uneven.put(i, i);
+			tiny.put(i, i);
+		}
+		assertEquals(21, uneven.size());
+		assertEquals(3, tiny.size());
+	}
+
+	@Test
+	void testConcurrentAccess() throws InterruptedException {
+		ConcurrentLRUCache<Integer, Integer> cache = new ConcurrentLRUCache<Integer, Integer>(256);
+		int nThread = 8;
+		int nOps = 20000;
+		AtomicInteger wrong = new AtomicInteger();
+		Thread[] threads = new Thread[nThread];
+		for (int it = 0; it < nThread; it++) {
+			final int seed = it;
+			threads[it] = new Thread(() -> {
+				for (int i = 0; i < nOps; i++) {
+					int key = (i * 31 + seed * 7) % 512;
+					Integer value = cache.get(key);
+					if (value == null) {
+						cache.put(key, key * 2);
+					} else if (value != key * 2) {
+						wrong.incrementAndGet();
+					}
+				}
+			});
+			threads[it].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(0, wrong.get());
+		assertTrue(cache.size() <= 256);
+		assertEquals((long) nThread * nOps, cache.getHitCount() + cache.getMissCount());
+	}
+}
@@ -44,4 +44,58 @@ class DailyToSurrogateTest {
 		assertTrue(out[17] == 7.);
 
 	}
+
+	@Test
+	void testBlockRange() {
+		DailyToSurrogateBlocked blocker = new DailyToSurrogateBlocked(8, 10, 11);
+		double[] history = new double[data.length];
+		for (int i = 0; i < history.length; i++) {
+			history[i] = Math.sin(0.3 * i) * 1000. + i;
+		}
+		int len = blocker.getInputLength();
+		float[] out = new float[6 * len];
+		blocker.dailyToSurrogateInputs(history, 117, 6, out, 0);
+		for (int k = 0; k < 6; k++) {
+			double[] expected = blocker.dailyToSurrogateInput(history, 117 + k);
+			for (int j = 0; j < len; j++) {
+				assertEquals((float) expected[j], out[k * len + j], 1e-3);
+			}
+		}
+	}
+
+	@Test
+	void testFlatBuffer() {
+		DailyToSurrogate[] converters = { new DailyToSurrogateDefault(90, false),
+				new DailyToSurrogateDefault(90, true), new DailyToSurrogateBlocked(8, 10, 11) };
+		for (DailyToSurrogate d2s : converters) {
+			int len = d2s.getInputLength();
+			float[] out = new float[3 + 5 * len];
+			d2s.dailyToSurrogateInputs(data, 118, 5, out, 3);
+			for (int k = 0; k < 5; k++) {
+				double[] expected = d2s.dailyToSurrogateInput(data, 118 + k);
+				assertEquals(len, expected.length);
+				for (int j = 0; j < len; j++) {
+					assertEquals((float) expected[j], out[3 + k * len + j]);
+				}
+			}
+		}
+
+		// An implementation of only the buffered method gets the single day form
+		DailyToSurrogate lastTwo = new DailyToSurrogate() {
+			@Override
+			public void dailyToSurrogateInputs(double[] data, int firstIndex, int nIndex, float[] out,
+					int outOffset) {
+				for (int k = 0; k < nIndex; k++) {
+					out[outOffset + 2 * k] = (float) data[firstIndex + k - 1];
+					out[outOffset + 2 * k + 1] = (float) data[firstIndex + k];
+				}
+			}
+
+			@Override
+			public int getInputLength() {
+				return 2;
+			}
+		};
+		assertArrayEquals(new double[] { 9., 10. }, lastTwo.dailyToSurrogateInput(data, 10));
+	}
 }
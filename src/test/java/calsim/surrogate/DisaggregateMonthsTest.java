@@ -37,4 +37,66 @@ class DisaggregateMonthsTest {
 		double[] fit = dis.apply(1976, 4, dataRev);
 	}
 
+	@Test
+	void testSplineOperator() {
+		DisaggregateMonthsSpline dis = new DisaggregateMonthsSpline(5);
+		double[] dataRev = { 2000., 2235., 2400., 500., 800. };
+		double[][] ts = dis.asIrregArray(1976, 4, dataRev);
+		double[] fit = dis.apply(1976, 4, dataRev);
+
+		// Fit the spline directly to compare with the cached operator
+		double[] pq = { 10., 10., 10., 10., 10., 10. };
+		ConservativeSpline spline = new ConservativeSpline(ts[0], ts[1], pq, ts[1][0], ts[1][5], -0.00000001);
+		assertEquals((int) ts[0][5] + 1, fit.length);
+		for (int ix = 0; ix < fit.length; ix++) {
+			try {
+				assertEquals(spline.rh2val(ix), fit[ix], 1e-9 * 2400.);
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+		assertSame(dis.operator(1976, 4), new DisaggregateMonthsSpline(5).operator(1976, 4));
+
+		// Values at the lower bound are fitted directly
+		double[] withFloor = { 2000., -0.00000001, 2400., 500., 800. };
+		assertFalse(DisaggregateMonthsSpline.isLinear(dis.asIrregArray(1976, 4, withFloor)[1]));
+		assertEquals(fit.length, dis.apply(1976, 4, withFloor).length);
+	}
+
+	@Test
+	void testApplyBatch() {
+		DisaggregateMonths[] disaggs = { new DisaggregateMonthsSpline(5), new DisaggregateMonthsRepeat(5),
+				new DisaggregateMonthsDaysToOps(5, 1., 0.) };
+		// The second row reaches the spline lower bound and is fitted directly
+		double[][] dataRev = { { 20., 22.5, 24., 5., 8. }, { 3., 0., 28., -1., 12. },
+				{ 10., 20., 5., 0., 28. } };
+		for (DisaggregateMonths dis : disaggs) {
+			double[][] out = new double[dataRev.length][dis.getOutputLength(2024, 3)];
+			dis.applyBatch(2024, 3, dataRev, out);
+			for (int ib = 0; ib < dataRev.length; ib++) {
+				double[] expected = dis.apply(2024, 3, dataRev[ib]);
+				assertEquals(expected.length, out[ib].length);
+				assertArrayEquals(expected, out[ib], 1e-9, dis.getClass().getSimpleName());
+			}
+		}
+	}
+
+	@Test
+	void testUpdateCurrentMonth() {
+		DisaggregateMonths[] disaggs = { new DisaggregateMonthsSpline(5), new DisaggregateMonthsRepeat(5),
+				new DisaggregateMonthsDaysToOps(5, 1., 0.) };
+		double[] baseRev = { 20., 22.5, 24., 5., 8. };
+		double[] dataRev = { 11., 22.5, 24., 5., 8. };
+		for (DisaggregateMonths dis : disaggs) {
+			double[] baseDaily = dis.apply(2024, 3, baseRev);
+			double[] out = new double[baseDaily.length];
+			assertTrue(dis.updateCurrentMonth(2024, 3, baseRev, baseDaily, dataRev, out));
+			assertArrayEquals(dis.apply(2024, 3, dataRev), out, 1e-9, dis.getClass().getSimpleName());
+		}
+		// The spline cannot update across its lower bound
+		double[] floored = { -1., 22.5, 24., 5., 8. };
+		DisaggregateMonths spline = disaggs[0];
+		assertFalse(spline.updateCurrentMonth(2024, 3, baseRev, spline.apply(2024, 3, baseRev), floored,
+				new double[spline.getOutputLength(2024, 3)]));
+	}
 }
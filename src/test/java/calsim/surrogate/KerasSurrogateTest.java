@@ -0,0 +1,185 @@
+package calsim.surrogate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class KerasSurrogateTest {
+
+	static final String[] EMMATON_NAMES = { "serving_default_sac:0", "serving_default_exports:0",
+			"serving_default_dcc:0", "serving_default_net_dcd:0", "serving_default_sjr:0", "serving_default_tide:0",
+			"serving_default_smscg:0" };
+
+	/**
+	 * Emmaton inputs from TensorCalsimTest with random perturbations of up to
+	 * +/-50% on each batch member after the first
+	 */
+	static ArrayList<double[][]> emmatonInputs(int nBatch) {
+		double[][] base = {
+				{ 7717.142, 7716.127, 7715.153, 7714.168, 7713.113, 7711.911, 7710.454, 7708.580, 7413.865, 6964.834,
+						6990.893, 9085.646, 10543.928, 10538.482, 9573.437, 9400.652, 10259.991, 19202.160 },
+				{ 3505.366, 3505.366, 3505.366, 3505.366, 3505.366, 3505.366, 3505.366, 3505.366, 3228.763, 2744.708,
+						2744.708, 4691.516, 6313.855, 6313.855, 4611.389, 4233.064, 4233.064, 11767.550 },
+				{ 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 16.364, 30.000, 30.000,
+						30.818, 31.000, 31.000, 31.000 },
+				{ 1632.914, 1632.914, 1632.914, 1632.914, 1632.914, 1632.914, 1632.914, 1632.914, 1364.777, 895.536,
+						895.536, 1093.966, 1259.325, 1259.325, 2029.012, 2200.054, 2200.054, 2565.653 },
+				{ 1277.638, 1277.781, 1277.942, 1278.132, 1278.363, 1278.656, 1279.040, 1279.564, 1347.192, 1445.815,
+						1443.771, 1205.677, 1039.761, 1039.770, 1108.564, 1121.629, 1104.088, 920.058 },
+				{ 6.560, 6.184, 5.508, 5.083, 4.913, 5.024, 5.233, 5.991, 5.958, 5.254, 5.719, 4.515, 5.757, 5.255,
+						4.907, 6.271, 5.489, 6.276 },
+				{ 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000, 0.000,
+						0.818, 1.000, 1.000, 1.000 } };
+		Random rand = new Random(17);
+		ArrayList<double[][]> inputs = new ArrayList<double[][]>();
+		for (double[] feature : base) {
+			double[][] arr = new double[nBatch][feature.length];
+			for (int ib = 0; ib < nBatch; ib++) {
+				double factor = ib == 0 ? 1.0 : 0.5 + rand.nextDouble();
+				for (int j = 0; j < feature.length; j++) {
+					arr[ib][j] = feature[j] * factor;
+				}
+			}
+			inputs.add(arr);
+		}
+		return inputs;
+	}
+
+	static void assertClose(float[][] expected, float[][] actual, double relTol) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i].length, actual[i].length);
+			for (int j = 0; j < expected[i].length; j++) {
+				double tol = relTol * Math.max(1.0, Math.abs(expected[i][j]));
+				assertEquals(expected[i][j], actual[i][j], tol, "batch " + i + " output " + j);
+			}
+		}
+	}
+
+	@Test
+	void testCheckpointReader() throws IOException {
+		File modelFolder = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/emmaton");
+		CheckpointReader ckpt = new CheckpointReader(modelFolder.getAbsolutePath());
+		assertArrayEquals(new long[] { 126, 8 }, ckpt.getShape("layer_with_weights-6/kernel/.ATTRIBUTES/VARIABLE_VALUE"));
+		assertEquals("layer_with_weights-6/kernel/.ATTRIBUTES/VARIABLE_VALUE", ckpt.resolve("layer-15/kernel"));
+		assertEquals(8, ckpt.getVariable("layer-15/bias").length);
+		assertFalse(ckpt.hasVariable("layer-14/kernel"));
+	}
+
+	@Test
+	void testEmmatonMatchesTensorFlow() throws IOException {
+		File modelFolder = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/emmaton");
+		String modelPath = modelFolder.getAbsolutePath();
+		DailyToSurrogate dayToANN = new DailyToSurrogateBlocked(8, 10, 11);
+		TensorWrapper tf = new TensorWrapper(modelPath, EMMATON_NAMES, new String[0], "StatefulPartitionedCall:0",
+				dayToANN);
+		KerasSurrogate java = new KerasSurrogate(modelPath, EMMATON_NAMES, new String[0], "StatefulPartitionedCall:0",
+				dayToANN);
+		assertEquals(7, java.getNFeatures());
+		assertEquals(2, java.getInputIndex("serving_default_dcc:0"));
+
+		ArrayList<double[][]> inputs = emmatonInputs(40);
+		float[][] expected = tf.estimate(inputs, null);
+		tf.close();
+		assertClose(expected, java.estimate(inputs, null), 1e-4);
+		assertClose(expected, java.estimate(SurrogateBatch.fromList(inputs)), 1e-4);
+	}
+
+	@Test
+	void testUnsupportedInput() throws IOException {
+		File modelFolder = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/emmaton");
+		String[] names = EMMATON_NAMES.clone();
+		names[1] = "serving_default_not_an_input:0";
+		assertThrows(IllegalArgumentException.class, () -> new KerasSurrogate(modelFolder.getAbsolutePath(), names,
+				new String[0], "StatefulPartitionedCall:0", new DailyToSurrogateBlocked(8, 10, 11)));
+	}
+
+	static final String[] SUISUN_NAMES = { "serving_default_northern_flow:0", "serving_default_exports:0",
+			"serving_default_sjr_flow:0", "serving_default_cu_flow:0", "serving_default_sf_tidal_energy:0",
+			"serving_default_sf_tidal_filter:0", "serving_default_dcc:0", "serving_default_smscg:0" };
+
+	/**
+	 * First nRow rows of the cached GRU inputs. Consecutive rows are windows ending
+	 * on consecutive days.
+	 */
+	static ArrayList<double[][]> suisunInputs(int nRow) throws IOException {
+		File dataFolder = ResourceUtils.extractResourceFolder("/calsim/surrogate/data");
+		ArrayList<double[][]> rawData = DebugUtils.readInputFeatures(Arrays.asList(SUISUN_NAMES),
+				dataFolder.getAbsolutePath());
+		ArrayList<double[][]> out = new ArrayList<double[][]>();
+		for (double[][] feature : rawData) {
+			out.add(Arrays.copyOf(feature, nRow));
+		}
+		return out;
+	}
+
+	@Test
+	void testRecurrentMatchesTensorFlow() throws IOException {
+		String modelPath = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/schism_base.suisun_gru2_tf")
+				.getAbsolutePath();
+		ArrayList<double[][]> inputs = suisunInputs(12);
+		for (int iOut = 0; iOut < 3; iOut++) {
+			String outName = "StatefulPartitionedCall:" + iOut;
+			TensorWrapper tf = new TensorWrapper(modelPath, SUISUN_NAMES, new String[0], outName,
+					new DailyToSurrogateDefault(90, false));
+			float[][] expected = tf.estimate(inputs, null);
+			tf.close();
+			KerasSurrogate java = new KerasSurrogate(modelPath, SUISUN_NAMES, new String[0], outName,
+					new DailyToSurrogateDefault(90, false));
+			assertTrue(java.isStreamable());
+			assertFalse(java.supportsStreaming());
+			// The contrast output is the difference of two outputs of order 1e4 and
+			// inherits their absolute error after 90 recurrent steps
+			assertClose(expected, java.estimate(inputs, null), 1e-3);
+		}
+	}
+
+	@Test
+	void testStreaming() throws IOException {
+		String modelPath = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/schism_base.suisun_gru2_tf")
+				.getAbsolutePath();
+		KerasSurrogate java = new KerasSurrogate(modelPath, SUISUN_NAMES, new String[0], "StatefulPartitionedCall:2",
+				new DailyToSurrogateDefault(90, false));
+		int nDay = 31;
+		ArrayList<double[][]> windows = suisunInputs(nDay);
+		float[][] exact = java.estimate(windows, null);
+
+		// One history per feature covering all the windows
+		ArrayList<double[][]> history = new ArrayList<double[][]>();
+		for (double[][] feature : windows) {
+			double[] h = Arrays.copyOf(feature[0], 90 + nDay - 1);
+			for (int d = 1; d < nDay; d++) {
+				h[89 + d] = feature[d][89];
+			}
+			history.add(new double[][] { h });
+		}
+		java.setStreaming(true);
+		assertTrue(java.supportsStreaming());
+		float[][] streamed = java.estimateStreaming(SurrogateBatch.fromList(history), nDay);
+		assertEquals(nDay, streamed.length);
+		// The first day is a full window from a zero state, as in estimate()
+		assertArrayEquals(exact[0], streamed[0], 1e-3f);
+
+		double maxRel = 0.0;
+		for (int d = 0; d < nDay; d++) {
+			for (int j = 0; j < exact[d].length; j++) {
+				maxRel = Math.max(maxRel, Math.abs(streamed[d][j] - exact[d][j]) / Math.max(1.0, Math.abs(exact[d][j])));
+			}
+		}
+		// Reusing the hidden state drifts up to about 0.14 of the exact output over a
+		// month for this model
+		assertTrue(maxRel < 0.2, "Streaming max relative difference " + maxRel);
+
+		KerasSurrogate mlp = new KerasSurrogate(
+				ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/emmaton").getAbsolutePath(), EMMATON_NAMES,
+				new String[0], "StatefulPartitionedCall:0", new DailyToSurrogateBlocked(8, 10, 11));
+		assertFalse(mlp.isStreamable());
+		assertThrows(IllegalStateException.class, () -> mlp.setStreaming(true));
+	}
+}
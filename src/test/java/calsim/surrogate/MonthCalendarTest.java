@@ -0,0 +1,41 @@
+package calsim.surrogate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.YearMonth;
+
+import org.junit.jupiter.api.Test;
+
+class MonthCalendarTest {
+
+	@Test
+	void testMatchesYearMonth() {
+		// 1899 and 2101 exercise the fallback outside the table
+		for (int year = 1899; year <= 2101; year += 3) {
+			for (int month = 1; month <= 12; month++) {
+				YearMonth ym = YearMonth.of(year, month);
+				assertEquals(ym.lengthOfMonth(), MonthCalendar.lengthOfMonth(year, month));
+				for (int nMonth = 1; nMonth <= 6; nMonth++) {
+					int[] days = MonthCalendar.daysMonth(year, month, nMonth);
+					int total = 0;
+					for (int lag = 0; lag < nMonth; lag++) {
+						assertEquals(ym.minusMonths(lag).lengthOfMonth(), days[lag]);
+						total += days[lag];
+					}
+					assertEquals(total, MonthCalendar.daysInHistory(year, month, nMonth));
+					assertEquals(total - days[0], MonthCalendar.offsetFirstMonth(year, month, nMonth));
+				}
+			}
+		}
+	}
+
+	@Test
+	void testDisaggregateMonths() {
+		DisaggregateMonths dis = new DisaggregateMonthsRepeat(5);
+		assertArrayEquals(new int[] { 29, 31, 31, 30, 31 }, dis.daysMonth(2024, 2));
+		assertEquals(152, dis.getNDay(2024, 2));
+		assertEquals(123, dis.offsetFirstMonth(2024, 2));
+		// History reaching back before the table
+		assertEquals(31 + 31 + 30 + 31 + 30, dis.getNDay(1900, 1));
+	}
+}
@@ -78,7 +78,100 @@ class SalinitySurrogateManagerTest {
 		assertTrue(ssm.getSurrogateForSite(1, 1) == annMonth11);
 
 	}	
+
+	@Test
+	void testMultiStatistic() {
+		SalinitySurrogateManager ssm = SalinitySurrogateManager.INSTANCE;
+		BatchingSurrogateTest.CountingSurrogate mock = new BatchingSurrogateTest.CountingSurrogate(118);
+		DisaggregateMonths spline = new DisaggregateMonthsSpline(5);
+		DisaggregateMonths repeat = new DisaggregateMonthsRepeat(5);
+		DisaggregateMonths[] disagg = { spline, spline, repeat, repeat, repeat };
+		int location = 41;
+		SurrogateMonth mean = new SurrogateMonth(disagg, mock, AggregateMonths.MONTHLY_MEAN);
+		SurrogateMonth max14 = new SurrogateMonth(disagg, mock, AggregateMonths.MONTHLY_MAX_14D_TRUNCATED);
+		SurrogateMonth max = new SurrogateMonth(disagg, mock, AggregateMonths.MONTHLY_MAX);
+		ssm.setSurrogateForSite(location, 1, mean);
+		ssm.setSurrogateForSite(location, 6, max14);
+		ssm.setSurrogateForSite(location, 4, max);
+		ssm.setIndexForSite(location, 0);
+		assertTrue(mean.sharesDailyOutput(max14));
+		assertFalse(mean.sharesDailyOutput(new SurrogateMonth(disagg, new MockSurrogate(118), AggregateMonths.MONTHLY_MAX)));
+
+		ArrayList<double[][]> floatInput = new ArrayList<double[][]>();
+		floatInput.add(new double[][] { { 11111., 21000., 10500., 15500, 20500 } });
+		floatInput.add(new double[][] { { 4100., 4100., 12100., 12100., 12100. } });
+		floatInput.add(new double[][] { { 1., 1., 0.33, 0.33, 0.33 } });
+		floatInput.add(new double[][] { { 0., 0., 0.33, 0.33, 0.33 } });
+		floatInput.add(new double[][] { { 0., 0., 0., 0., 0. } });
+		int year = 2011;
+		int month = 7;
+		float expectedMax14 = (float) max14.annMonth(floatInput, year, month)[0][0];
+		float expectedMax = (float) max.annMonth(floatInput, year, month)[0][0];
+
+		ssm.setMultiStatistic(true);
+		try {
+			mock.calls.set(0);
+			float meanEC = ssm.annEC(floatInput, location, 1, month, year);
+			int calls = mock.calls.get();
+			assertTrue(calls > 0);
+			assertEquals((float) mean.annMonth(floatInput, year, month)[0][0], meanEC);
+			mock.calls.set(0);
+			// Served from the statistics cached by the first call
+			assertEquals(expectedMax14, ssm.annEC(floatInput, location, 6, month, year));
+			assertEquals(expectedMax, ssm.annEC(floatInput, location, 4, month, year));
+			assertEquals(0, mock.calls.get());
+		} finally {
+			ssm.setMultiStatistic(false);
+		}
+	}
 	
+	@Test
+	void testRequiredFlowDayCounts() {
+		SalinitySurrogateManager ssm = SalinitySurrogateManager.INSTANCE;
+		BatchingSurrogateTest.CountingSurrogate mock = new BatchingSurrogateTest.CountingSurrogate(118);
+		DisaggregateMonths spline = new DisaggregateMonthsSpline(5);
+		DisaggregateMonths repeat = new DisaggregateMonthsRepeat(5);
+		DisaggregateMonths[] disagg = { spline, spline, repeat, repeat, repeat };
+		int location = 42;
+		int aveType = AggregateMonths.NTH_SMALLEST.calsimCode;
+		SurrogateMonth nth = new SurrogateMonth(disagg, mock, AggregateMonths.NTH_SMALLEST);
+		ssm.setSurrogateForSite(location, aveType, nth);
+		ssm.setIndexForSite(location, 1);
+
+		ArrayList<double[][]> floatInput = new ArrayList<double[][]>();
+		floatInput.add(new double[][] { { 10000., 12000., 10000., 20000, 20000. } });
+		floatInput.add(new double[][] { { 4000., 4000., 12000., 12000., 12000. } });
+		floatInput.add(new double[][] { { 1., 1., 0.33, 0.33, 0.33 } });
+		floatInput.add(new double[][] { { 0., 0., 0.33, 0.33, 0.33 } });
+		floatInput.add(new double[][] { { 0., 0., 0., 0., 0. } });
+		int year = 1990;
+		int month = 2;
+		double target = 1000.;
+		int[] nths = { 20, 5, 14 };
+
+		// Each day count solved on its own
+		float[] expected = new float[nths.length];
+		mock.calls.set(0);
+		for (int i = 0; i < nths.length; i++) {
+			InverseSurrogateMonth single = new InverseSurrogateMonth(nth,
+					Aggregator.of(AggregateMonths.NTH_SMALLEST, nths[i], target));
+			expected[i] = (float) single.invert(target, floatInput, 0, 4000., 24000., year, month, 1);
+		}
+		int separateCalls = mock.calls.get();
+
+		mock.calls.set(0);
+		float[] reqs = ssm.requiredFlow(target, floatInput, 4000., 24000., location, aveType, month, year, nths);
+		assertArrayEquals(expected, reqs);
+		assertTrue(mock.calls.get() < separateCalls);
+
+		// The single day count call is served from the entries cached above
+		mock.calls.set(0);
+		assertEquals(reqs[2], ssm.requiredFlow(target, floatInput, 4000., 24000., location, aveType, month, year, 14.));
+		assertEquals(0, mock.calls.get());
+		assertThrows(IllegalArgumentException.class, () -> ssm.requiredFlow(target, floatInput, 4000., 24000.,
+				location, AggregateMonths.MONTHLY_MEAN.calsimCode, month, year, nths));
+	}
+
 	/*
 	@Test
 	void testSurrogateMonthLogHeader() {
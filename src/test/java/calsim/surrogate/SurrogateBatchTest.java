@@ -0,0 +1,125 @@
+package calsim.surrogate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class SurrogateBatchTest {
+
+	private ArrayList<double[][]> sample() {
+		ArrayList<double[][]> inputs = new ArrayList<double[][]>();
+		double[][] arr0 = { { 1., 2., 3. }, { 4., 5., 6. } };
+		double[][] arr1 = { { 7., 8. }, { 9., 10. } };
+		inputs.add(arr0);
+		inputs.add(arr1);
+		return inputs;
+	}
+
+	@Test
+	void testLayout() {
+		SurrogateBatch batch = SurrogateBatch.fromList(sample());
+		assertEquals(2, batch.getNFeatures());
+		assertEquals(2, batch.getNBatch());
+		assertEquals(3, batch.getLagLength(0));
+		assertEquals(2, batch.getLagLength(1));
+
+		float[] expected = { 1f, 2f, 3f, 4f, 5f, 6f, 7f, 8f, 9f, 10f };
+		assertArrayEquals(expected, batch.getData());
+		assertEquals(6, batch.featureOffset(1));
+		assertEquals(8, batch.rowOffset(1, 1));
+		assertEquals(5f, batch.get(0, 1, 1));
+
+		batch.set(1, 0, 1, 11f);
+		assertArrayEquals(new double[] { 7., 11. }, batch.getRow(1, 0));
+
+		FloatBuffer view = batch.featureView(1);
+		assertEquals(4, view.remaining());
+		assertEquals(11f, view.get(1));
+
+		assertArrayEquals(new double[] { 1., 7. }, batch.latestFeatures());
+		assertArrayEquals(batch.latestFeatures(), RunRecord.extractLatestFeatures(batch));
+	}
+
+	@Test
+	void testRoundTrip() {
+		ArrayList<double[][]> inputs = sample();
+		ArrayList<double[][]> back = SurrogateBatch.fromList(inputs).toList();
+		assertEquals(inputs.size(), back.size());
+		for (int i = 0; i < inputs.size(); i++) {
+			assertTrue(Arrays.deepEquals(inputs.get(i), back.get(i)));
+		}
+
+		InputSizeInfo info = new InputSizeInfo(SurrogateBatch.fromList(inputs));
+		assertEquals(2, info.batchLen);
+		assertEquals(3, info.maxSize);
+		assertEquals(2, info.minSize);
+	}
+
+	@Test
+	void testTensorWrapperMatchesList() throws IOException {
+		File dataFolder = ResourceUtils.extractResourceFolder("/calsim/surrogate/data");
+		File modelFolder = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/schism_base.suisun_gru2_tf");
+		String[] tensorNames = { "serving_default_northern_flow:0", "serving_default_exports:0",
+				"serving_default_sjr_flow:0", "serving_default_cu_flow:0", "serving_default_sf_tidal_energy:0",
+				"serving_default_sf_tidal_filter:0", "serving_default_dcc:0", "serving_default_smscg:0" };
+		TensorWrapper wrapper = new TensorWrapper(modelFolder.getAbsolutePath(), tensorNames, new String[] {},
+				"StatefulPartitionedCall:2", new DailyToSurrogateDefault(90, false));
+		ArrayList<double[][]> rawData = DebugUtils.readInputFeatures(Arrays.asList(tensorNames),
+				dataFolder.getAbsolutePath());
+		ArrayList<double[][]> limited = new ArrayList<double[][]>();
+		for (double[][] feature : rawData) {
+			limited.add(Arrays.copyOf(feature, Math.min(feature.length, 8)));
+		}
+
+		float[][] fromList = wrapper.estimate(limited, null);
+		float[][] fromBatch = wrapper.estimate(SurrogateBatch.fromList(limited));
+		wrapper.close();
+		assertEquals(fromList.length, fromBatch.length);
+		for (int i = 0; i < fromList.length; i++) {
+			assertArrayEquals(fromList[i], fromBatch[i]);
+		}
+	}
+
+	@Test
+	void testSlidingWindows() {
+		// Rows of length 5 seen as 3 windows of length 3, and of 4 as windows of 2
+		double[][] arr0 = { { 1., 2., 3., 4., 5. }, { 6., 7., 8., 9., 10. } };
+		double[][] arr1 = { { 11., 12., 13., 14. }, { 15., 16., 17., 18. } };
+		ArrayList<double[][]> inputs = new ArrayList<double[][]>();
+		inputs.add(arr0);
+		inputs.add(arr1);
+		SurrogateBatch histories = SurrogateBatch.fromList(inputs);
+		SurrogateBatch windows = histories.slidingWindows(3);
+		assertFalse(windows.isContiguous());
+		assertEquals(6, windows.getNBatch());
+		assertEquals(3, windows.getLagLength(0));
+		assertEquals(2, windows.getLagLength(1));
+		assertArrayEquals(new double[] { 3., 4., 5. }, windows.getRow(0, 2));
+		assertArrayEquals(new double[] { 7., 8., 9. }, windows.getRow(0, 4));
+		assertArrayEquals(new double[] { 17., 18. }, windows.getRow(1, 5));
+
+		SurrogateBatch compact = windows.compact();
+		assertTrue(compact.isContiguous());
+		FloatBuffer view = windows.featureView(0);
+		float[] block = new float[18];
+		windows.copyFeature(0, block, 0);
+		for (int k = 0; k < block.length; k++) {
+			assertEquals(compact.getData()[compact.featureOffset(0) + k], block[k]);
+			assertEquals(block[k], view.get(k));
+		}
+		assertEquals(7.f, block[10]);
+
+		// Writes to the history show through the view
+		histories.set(0, 1, 2, -1.f);
+		assertEquals(-1.f, windows.get(0, 3, 2));
+		assertEquals(-1.f, windows.get(0, 5, 0));
+		assertThrows(IllegalArgumentException.class, () -> histories.slidingWindows(5));
+		assertThrows(IllegalStateException.class, () -> windows.slidingWindows(2));
+	}
+}
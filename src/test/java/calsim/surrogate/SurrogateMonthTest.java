@@ -4,6 +4,8 @@ import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class SurrogateMonthTest {
     private SurrogateMonth annMonth;
@@ -106,4 +108,194 @@ class SurrogateMonthTest {
 
         // (Optional) If the surrogate returns known results, add more detailed assertions here.
     }
-}
\ No newline at end of file
+
+    @Test
+    void testDisaggregationCacheOnGrid() {
+        // Grid rows share their history, so all but one per feature are derived
+        // from the cached daily series. Compare with uncached single-row runs.
+        GridResult grid = annMonth.evaluateOnGrid(floatInput, 2010, 10, 4000.0, 25000.0, 4, 500.0, 12000.0, 3);
+        ArrayList<double[][]> gridInputs = grid.getMonthlyInputs();
+        double[][][] result = grid.getResult();
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 3; j++) {
+                ArrayList<double[][]> single = new ArrayList<>();
+                for (double[][] feature : gridInputs) {
+                    single.add(new double[][] { feature[i * 3 + j] });
+                }
+                DisaggregateMonths spline = new DisaggregateMonthsSpline(nMonthHist);
+                DisaggregateMonths repeat = new DisaggregateMonthsRepeat(nMonthHist);
+                SurrogateMonth fresh = new SurrogateMonth(new DisaggregateMonths[] { spline, spline, repeat, repeat, repeat },
+                        new MockSurrogate(nDayHist), AggregateMonths.MONTHLY_MEAN);
+                double expected = fresh.annMonth(single, 2010, 10)[0][0];
+                assertEquals(expected, result[i][j][0], 1e-6 * Math.abs(expected));
+            }
+        }
+    }
+
+    @Test
+    void testDisaggregationCacheFollowsParameters() {
+        // Changing a disaggregator after an evaluation must not reuse the daily
+        // series cached under its old parameters
+        DisaggregateMonths spline = new DisaggregateMonthsSpline(nMonthHist);
+        DisaggregateMonths repeat = new DisaggregateMonthsRepeat(nMonthHist);
+        DisaggregateMonthsDaysToOps ops = new DisaggregateMonthsDaysToOps(nMonthHist, 1., 0.);
+        SurrogateMonth sm = new SurrogateMonth(new DisaggregateMonths[] { spline, spline, ops, repeat, repeat },
+                new MockSurrogate(nDayHist), AggregateMonths.MONTHLY_MEAN);
+        ArrayList<double[][]> input = new ArrayList<>(floatInput);
+        input.set(2, new double[][] { { 10., 10., 10., 10., 10. } });
+        double before = sm.annMonth(input, 2011, 7)[0][0];
+
+        ops.setStartOp(0.5);
+        SurrogateMonth fresh = new SurrogateMonth(
+                new DisaggregateMonths[] { spline, spline, new DisaggregateMonthsDaysToOps(nMonthHist, 0.5, 0.), repeat,
+                        repeat },
+                new MockSurrogate(nDayHist), AggregateMonths.MONTHLY_MEAN);
+        double expected = fresh.annMonth(input, 2011, 7)[0][0];
+        assertNotEquals(before, expected, 1e-6 * Math.abs(expected));
+        assertEquals(expected, sm.annMonth(input, 2011, 7)[0][0], 1e-6 * Math.abs(expected));
+    }
+
+    /**
+     * Surrogate returning the mean of the last few days of feature 0. Its
+     * streaming mode is exact, so both paths through timeStep must agree.
+     */
+    static class WindowMeanSurrogate implements Surrogate {
+        final int window;
+        final boolean streaming;
+
+        WindowMeanSurrogate(int window, boolean streaming) {
+            this.window = window;
+            this.streaming = streaming;
+        }
+
+        @Override
+        public float[][] estimate(ArrayList<double[][]> rawData, ArrayList<long[][]> rawDataInt) {
+            double[][] x = rawData.get(0);
+            float[][] out = new float[x.length][1];
+            for (int i = 0; i < x.length; i++) {
+                out[i][0] = (float) Arrays.stream(x[i]).average().getAsDouble();
+            }
+            return out;
+        }
+
+        @Override
+        public boolean supportsStreaming() {
+            return streaming;
+        }
+
+        @Override
+        public float[][] estimateStreaming(SurrogateBatch histories, int nSteps) {
+            int nBatch = histories.getNBatch();
+            float[][] out = new float[nBatch * nSteps][1];
+            for (int ib = 0; ib < nBatch; ib++) {
+                double[] h = histories.getRow(0, ib);
+                for (int d = 0; d < nSteps; d++) {
+                    double[] w = Arrays.copyOfRange(h, d, d + window);
+                    out[ib * nSteps + d][0] = (float) Arrays.stream(w).average().getAsDouble();
+                }
+            }
+            return out;
+        }
+
+        @Override
+        public DailyToSurrogate getDailyToSurrogate() {
+            return new DailyToSurrogateDefault(window, false);
+        }
+
+        @Override
+        public int getNFeatures() {
+            return 5;
+        }
+    }
+
+    @Test
+    void testStreamingTimeStep() {
+        DisaggregateMonths spline = new DisaggregateMonthsSpline(nMonthHist);
+        DisaggregateMonths[] disagg = { spline, spline, spline, spline, spline };
+        ArrayList<double[][]> inputs = new ArrayList<>();
+        for (double[][] f : floatInput) {
+            inputs.add(new double[][] { f[0], f[0].clone() });
+        }
+        inputs.get(0)[1][0] = 15000.;
+        SurrogateMonth windowed = new SurrogateMonth(disagg, new WindowMeanSurrogate(10, false),
+                AggregateMonths.MONTHLY_MEAN);
+        SurrogateMonth streamed = new SurrogateMonth(disagg, new WindowMeanSurrogate(10, true),
+                AggregateMonths.MONTHLY_MEAN);
+        for (int month = 1; month <= 12; month++) {
+            double[][] expected = windowed.annMonth(inputs, 2011, month);
+            double[][] actual = streamed.annMonth(inputs, 2011, month);
+            for (int ib = 0; ib < expected.length; ib++) {
+                assertArrayEquals(expected[ib], actual[ib], 1e-2, "month " + month);
+            }
+        }
+    }
+
+    @Test
+    void testBlockedInputsUsePrefixSums() {
+        // A blocked surrogate expands the month with one prefix-sum pass per
+        // feature and batch member rather than one call per day
+        AtomicInteger runs = new AtomicInteger();
+        DailyToSurrogateBlocked blocked = new DailyToSurrogateBlocked(8, 10, 11) {
+            @Override
+            public void dailyToSurrogateInputs(double[] input, int firstIndex, int nIndex, float[] out,
+                    int outOffset) {
+                runs.incrementAndGet();
+                super.dailyToSurrogateInputs(input, firstIndex, nIndex, out, outOffset);
+            }
+        };
+        // ... and goes through the surrogate, which may override the expansion
+        AtomicInteger surrogateRuns = new AtomicInteger();
+        Surrogate mock = new MockSurrogate(nDayHist) {
+            @Override
+            public DailyToSurrogate getDailyToSurrogate() {
+                return blocked;
+            }
+
+            @Override
+            public void dailyToSurrogateInputs(double[] dailyData, int firstIndex, int nIndex, float[] out,
+                    int outOffset) {
+                surrogateRuns.incrementAndGet();
+                super.dailyToSurrogateInputs(dailyData, firstIndex, nIndex, out, outOffset);
+            }
+        };
+        DisaggregateMonths spline = new DisaggregateMonthsSpline(nMonthHist);
+        DisaggregateMonths[] disagg = { spline, spline, spline, spline, spline };
+        SurrogateMonth sm = new SurrogateMonth(disagg, mock, AggregateMonths.MONTHLY_MEAN);
+        double[][] result = sm.annMonth(floatInput, 2011, 7);
+        assertEquals(1, result.length);
+        assertEquals(floatInput.size(), runs.get());
+        assertEquals(floatInput.size(), surrogateRuns.get());
+    }
+
+    @Test
+    void testSeparateRegistrationsShareDailyOutput() throws java.io.IOException {
+        String modelPath = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/emmaton").getAbsolutePath();
+        int nFeature = KerasSurrogateTest.EMMATON_NAMES.length;
+        TensorWrapper[] wrappers = new TensorWrapper[3];
+        SurrogateMonth[] months = new SurrogateMonth[3];
+        for (int i = 0; i < 3; i++) {
+            // Everything built anew for each registration, as a configuration would
+            DisaggregateMonths[] disagg = new DisaggregateMonths[nFeature];
+            for (int j = 0; j < nFeature; j++) {
+                disagg[j] = j < 2 ? new DisaggregateMonthsSpline(nMonthHist)
+                        : new DisaggregateMonthsDaysToOps(nMonthHist, 1., i == 2 ? 0.5 : 0.);
+            }
+            wrappers[i] = new TensorWrapper(modelPath, KerasSurrogateTest.EMMATON_NAMES, new String[0],
+                    "StatefulPartitionedCall:0", new DailyToSurrogateBlocked(8, 10, 11));
+            months[i] = new SurrogateMonth(disagg, wrappers[i],
+                    i == 0 ? AggregateMonths.MONTHLY_MEAN : AggregateMonths.MONTHLY_MAX_14D_TRUNCATED);
+        }
+        try {
+            assertTrue(months[0].sharesDailyOutput(months[1]));
+            assertTrue(months[1].sharesDailyOutput(months[0]));
+            // Different disaggregator parameters give different daily inputs
+            assertFalse(months[0].sharesDailyOutput(months[2]));
+            wrappers[1].setPostProcessor(OutputPostProcessor.NONE);
+            assertFalse(months[0].sharesDailyOutput(months[1]));
+        } finally {
+            for (TensorWrapper w : wrappers) {
+                w.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package calsim.surrogate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+class TensorBufferPoolTest {
+
+	private ArrayList<double[][]> inputs(int nBatch, int len, int nFeature) {
+		ArrayList<double[][]> out = new ArrayList<double[][]>();
+		for (int i = 0; i < nFeature; i++) {
+			out.add(new double[nBatch][len]);
+		}
+		return out;
+	}
+
+	@Test
+	void testReuseByShape() {
+		TensorBufferPool pool = new TensorBufferPool();
+		TensorBufferPool.Slot a = pool.acquire(inputs(31, 18, 7), 7);
+		TensorBufferPool.Slot b = pool.acquire(inputs(5 * 31, 18, 7), 7);
+		TensorBufferPool.Slot a2 = pool.acquire(inputs(31, 18, 7), 7);
+		assertSame(a, a2);
+		assertNotSame(a, b);
+		assertEquals(2, pool.size());
+
+		FloatBuffer in = a.input();
+		assertEquals(31 * 18, in.remaining());
+		assertArrayEquals(new long[] { 31, 18 }, a.shape(0));
+		FloatBuffer out = a.output(3);
+		assertEquals(31 * 3, out.capacity());
+		assertSame(a.outArray(3), a.outArray(3));
+	}
+
+	@Test
+	void testMemoryCap() {
+		// room for about two 31x18 slots
+		long budget = 2L * 31 * 18 * Float.BYTES + 16;
+		TensorBufferPool pool = new TensorBufferPool(budget);
+		pool.acquire(inputs(31, 18, 1), 1);
+		pool.acquire(inputs(31, 17, 1), 1);
+		pool.acquire(inputs(31, 16, 1), 1);
+		assertTrue(pool.getPooledBytes() <= budget);
+		assertEquals(2, pool.size());
+
+		// larger than the budget: served but not retained
+		TensorBufferPool.Slot big = pool.acquire(inputs(1000, 18, 1), 1);
+		assertNotNull(big.input());
+		assertTrue(pool.getPooledBytes() <= budget);
+		assertNotSame(big, pool.acquire(inputs(1000, 18, 1), 1));
+
+		// a slot evicted when its output grows past the budget is not reused
+		TensorBufferPool.Slot grown = pool.acquire(inputs(31, 18, 1), 1);
+		pool.recordOutput(grown, 1000);
+		assertTrue(pool.getPooledBytes() <= budget);
+		assertNotSame(grown, pool.acquire(inputs(31, 18, 1), 1));
+
+		// an empty batch is a valid call and takes no room
+		TensorBufferPool.Slot empty = pool.acquire(0, new int[] { 18 });
+		pool.recordOutput(empty, 3);
+		assertEquals(0, empty.output(3).capacity());
+
+		pool.clear();
+		assertEquals(0, pool.size());
+		assertEquals(0, pool.getPooledBytes());
+	}
+}
@@ -1,5 +1,10 @@
 package calsim.surrogate;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 
@@ -8,6 +13,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class TensorWrapperTest {
 	
@@ -164,6 +173,179 @@ public class TensorWrapperTest {
         
         wrapper.close();
     }
-    
 
-}
\ No newline at end of file
+    @Test
+    public void testSessionConfigEncoding() {
+        assertArrayEquals(new byte[0], new SessionConfig().toConfigProto());
+        assertArrayEquals(new byte[] { 0x10, 2, 0x28, 1 },
+                new SessionConfig().intraOpThreads(2).interOpThreads(1).toConfigProto());
+        // graph_options { optimizer_options { opt_level: L0 } } with -1 as a ten byte varint
+        byte[] l0 = new SessionConfig().optimizerLevel(SessionConfig.OptimizerLevel.L0).toConfigProto();
+        assertArrayEquals(new byte[] { 0x52, 13, 0x1a, 11, 0x18, -1, -1, -1, -1, -1, -1, -1, -1, -1, 1 }, l0);
+        // session_inter_op_thread_pool { num_threads: 3 global_name: "a" }
+        assertArrayEquals(new byte[] { 0x62, 5, 0x08, 3, 0x12, 1, 'a' },
+                new SessionConfig().sharedInterOpPool("a", 3).toConfigProto());
+        assertThrows(IllegalArgumentException.class, () -> new SessionConfig().intraOpThreads(-1));
+    }
+
+    @Test
+    public void testBuilderWithSessionConfig() throws IOException {
+        String modelPath = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/emmaton").getAbsolutePath();
+        DailyToSurrogate dayToANN = new DailyToSurrogateBlocked(8, 10, 11);
+        ArrayList<double[][]> inputs = KerasSurrogateTest.emmatonInputs(4);
+
+        TensorWrapper plain = new TensorWrapper(modelPath, KerasSurrogateTest.EMMATON_NAMES, new String[0],
+                "StatefulPartitionedCall:0", dayToANN);
+        float[][] expected = plain.estimate(inputs, null);
+        plain.close();
+
+        TensorWrapper configured = TensorWrapper.builder(modelPath)
+                .inputs(KerasSurrogateTest.EMMATON_NAMES, new String[0])
+                .output("StatefulPartitionedCall:0")
+                .dailyToSurrogate(dayToANN)
+                .sessionConfig(new SessionConfig().intraOpThreads(1).sharedInterOpPool("calsurrogate_test", 1)
+                        .optimizerLevel(SessionConfig.OptimizerLevel.L1))
+                .build();
+        float[][] actual = configured.estimate(inputs, null);
+        configured.close();
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], actual[i], 1e-6f);
+        }
+        assertThrows(IllegalStateException.class, () -> TensorWrapper.builder(modelPath).build());
+    }
+
+    @Test
+    public void testConcurrentEstimate() throws Exception {
+        String modelPath = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/emmaton").getAbsolutePath();
+        TensorWrapper wrapper = TensorWrapper.builder(modelPath)
+                .inputs(KerasSurrogateTest.EMMATON_NAMES, new String[0])
+                .output("StatefulPartitionedCall:0")
+                .dailyToSurrogate(new DailyToSurrogateBlocked(8, 10, 11))
+                .maxConcurrentCalls(3)
+                .build();
+        assertEquals(3, wrapper.getMaxConcurrentCalls());
+
+        // Distinct batch sizes so that a call reading another call's buffers would show
+        int nTask = 24;
+        List<ArrayList<double[][]>> inputs = new ArrayList<>();
+        List<float[][]> expected = new ArrayList<>();
+        for (int t = 0; t < nTask; t++) {
+            inputs.add(KerasSurrogateTest.emmatonInputs(1 + t % 5 + t));
+            expected.add(wrapper.estimate(inputs.get(t), null));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<float[][]>> futures = new ArrayList<>();
+            for (int t = 0; t < nTask; t++) {
+                ArrayList<double[][]> in = inputs.get(t);
+                futures.add(executor.submit(() -> wrapper.estimate(in, null)));
+            }
+            for (int t = 0; t < nTask; t++) {
+                float[][] actual = futures.get(t).get();
+                assertEquals(expected.get(t).length, actual.length);
+                for (int i = 0; i < actual.length; i++) {
+                    assertArrayEquals(expected.get(t)[i], actual[i], "task " + t + " row " + i);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            wrapper.close();
+        }
+    }
+
+    @Test
+    public void testModelSharedThroughRegistry() throws IOException {
+        String modelPath = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/emmaton").getAbsolutePath();
+        ModelRegistry registry = ModelRegistry.getInstance();
+        int before = registry.getRefCount(modelPath);
+        DailyToSurrogate dayToANN = new DailyToSurrogateBlocked(8, 10, 11);
+        TensorWrapper mean = new TensorWrapper(modelPath, KerasSurrogateTest.EMMATON_NAMES, new String[0],
+                "StatefulPartitionedCall:0", dayToANN);
+        TensorWrapper max14 = new TensorWrapper(modelPath + "/.", KerasSurrogateTest.EMMATON_NAMES, new String[0],
+                "StatefulPartitionedCall:0", dayToANN);
+        assertSame(mean.model, max14.model);
+        assertEquals(before + 2, registry.getRefCount(modelPath));
+
+        ArrayList<double[][]> inputs = KerasSurrogateTest.emmatonInputs(2);
+        float[][] expected = mean.estimate(inputs, null);
+        mean.close();
+        mean.close();
+        assertEquals(before + 1, registry.getRefCount(modelPath));
+        // The model stays open for the remaining user
+        assertArrayEquals(expected[1], max14.estimate(inputs, null)[1]);
+        max14.close();
+        assertEquals(before, registry.getRefCount(modelPath));
+    }
+
+    @Test
+    public void testBackgroundLoadWithWarmUp() throws IOException {
+        String modelPath = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/emmaton").getAbsolutePath();
+        DailyToSurrogate dayToANN = new DailyToSurrogateBlocked(8, 10, 11);
+        int[] lags = new int[KerasSurrogateTest.EMMATON_NAMES.length];
+        Arrays.fill(lags, 18);
+        TensorWrapper wrapper = TensorWrapper.builder(modelPath)
+                .inputs(KerasSurrogateTest.EMMATON_NAMES, new String[0])
+                .output("StatefulPartitionedCall:0")
+                .dailyToSurrogate(dayToANN)
+                .loadInBackground(true)
+                .warmUp(lags, 31, 5 * 31)
+                .build();
+        ArrayList<double[][]> inputs = KerasSurrogateTest.emmatonInputs(31);
+        // Blocks until loading and warm-up are done
+        float[][] actual = wrapper.estimate(inputs, null);
+        assertTrue(wrapper.isLoaded());
+        assertEquals(2, wrapper.getBufferPool().size());
+
+        TensorWrapper eager = new TensorWrapper(modelPath, KerasSurrogateTest.EMMATON_NAMES, new String[0],
+                "StatefulPartitionedCall:0", dayToANN);
+        float[][] expected = eager.estimate(inputs, null);
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], actual[i]);
+        }
+        eager.close();
+        wrapper.close();
+
+        // Load errors surface on first use
+        TensorWrapper missing = TensorWrapper.builder(modelPath + "/does_not_exist")
+                .inputs(KerasSurrogateTest.EMMATON_NAMES, new String[0])
+                .output("StatefulPartitionedCall:0")
+                .loadInBackground(true)
+                .build();
+        assertThrows(RuntimeException.class, () -> missing.estimate(inputs, null));
+        assertFalse(missing.isLoaded());
+        missing.close();
+    }
+
+    @Test
+    public void testOutputConsumerAndPostProcessor() throws IOException {
+        String modelPath = ResourceUtils.extractResourceFolder("/calsim/surrogate/ann/emmaton").getAbsolutePath();
+        TensorWrapper wrapper = new TensorWrapper(modelPath, KerasSurrogateTest.EMMATON_NAMES, new String[0],
+                "StatefulPartitionedCall:0", new DailyToSurrogateBlocked(8, 10, 11));
+        SurrogateBatch batch = SurrogateBatch.fromList(KerasSurrogateTest.emmatonInputs(6));
+        float[][] expected = wrapper.estimate(batch);
+
+        float[][] consumed = new float[expected.length][];
+        wrapper.estimate(batch, (out, nRow, nOut) -> {
+            assertEquals(expected.length, nRow);
+            for (int i = 0; i < nRow; i++) {
+                consumed[i] = new float[nOut];
+                out.get(consumed[i]);
+            }
+        });
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], consumed[i]);
+        }
+
+        // A floor above every output flattens the result
+        wrapper.setPostProcessor(OutputPostProcessor.floor(1e9f));
+        for (float[] row : wrapper.estimate(batch)) {
+            for (float v : row) {
+                assertEquals(1e9f, v);
+            }
+        }
+        wrapper.setPostProcessor(OutputPostProcessor.NONE);
+        assertArrayEquals(expected[0], wrapper.estimate(batch)[0]);
+        wrapper.close();
+    }
+}